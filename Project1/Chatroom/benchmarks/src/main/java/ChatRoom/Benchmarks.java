@@ -0,0 +1,167 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.*;
+import java.util.*;
+
+// Helpers shared by the benchmarks: chat lines like the server writes them, scratch directories for chat records,
+// and connections whose output goes nowhere, so that a benchmark measures the server and not the kernel.
+final class Benchmarks {
+
+    private static final String[] words = { "apple", "banana", "cherry", "grape", "lemon", "mango", "melon", "peach", "pear", "plum",
+            "hello", "world", "meeting", "tomorrow", "lunch", "project", "deadline", "review", "server", "client" };
+
+    private Benchmarks() {
+    }
+
+    // A chat line as stored in the chat record, from one of a hundred users, with a few common words
+    // and one word unique to the line.
+    static String chatLine(int i) {
+        Random random = new Random(i);
+        StringBuilder line = new StringBuilder(String.format("2026-01-%02d %02d:%02d:%02d [%d]user%d : ",
+                1 + i / 86400 % 28, i / 3600 % 24, i / 60 % 60, i % 60, Server.minID + i % 100, i % 100));
+        for (int w = 0; w < 6; w++) {
+            line.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return line.append("unique").append(i).toString();
+    }
+
+    static Path tempDirectory() throws IOException {
+        return Files.createTempDirectory("chat-bench");
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (var paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // Wait until every line appended so far has been committed.
+    static void awaitCommitted(ChatLog chatLog, long messages) {
+        while (chatLog.messageCount() < messages) {
+            Thread.onSpinWait();
+        }
+    }
+
+    // A connection whose writer runs on the sending thread and whose channel takes every byte,
+    // so a broadcast pays for queueing and the gathering write but not for a socket.
+    static final class DiscardConnection extends Connection {
+
+        DiscardConnection(boolean framed) {
+            super(new DiscardChannel());
+            negotiate(framed);
+            // The acknowledgement of the frames is not part of what is measured.
+            flush();
+        }
+
+        protected void scheduleFlush() {
+            flush();
+        }
+
+        private void flush() {
+            try {
+                writePending();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // An always connected channel that consumes whatever is written to it.
+    private static final class DiscardChannel extends SocketChannel {
+
+        DiscardChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(sources[i]);
+            }
+            return written;
+        }
+
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        public int read(ByteBuffer destination) {
+            return -1;
+        }
+
+        public long read(ByteBuffer[] destinations, int offset, int length) {
+            return -1;
+        }
+
+        public SocketChannel bind(SocketAddress local) {
+            return this;
+        }
+
+        public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+            return this;
+        }
+
+        public <T> T getOption(SocketOption<T> name) {
+            return null;
+        }
+
+        public Set<SocketOption<?>> supportedOptions() {
+            return Set.of();
+        }
+
+        public SocketChannel shutdownInput() {
+            return this;
+        }
+
+        public SocketChannel shutdownOutput() {
+            return this;
+        }
+
+        public java.net.Socket socket() {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean isConnected() {
+            return true;
+        }
+
+        public boolean isConnectionPending() {
+            return false;
+        }
+
+        public boolean connect(SocketAddress remote) {
+            return true;
+        }
+
+        public boolean finishConnect() {
+            return true;
+        }
+
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        protected void implCloseSelectableChannel() {
+        }
+
+        protected void implConfigureBlocking(boolean block) {
+        }
+    }
+}
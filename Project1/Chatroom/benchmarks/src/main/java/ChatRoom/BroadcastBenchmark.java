@@ -0,0 +1,46 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Fan-out of one chat message to every member of a room: encoded once, then queued and written per member.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    int members;
+
+    @Param({ "true", "false" })
+    boolean framed;
+
+    private Path directory;
+    private Room room;
+    private final String line = Benchmarks.chatLine(42);
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.tempDirectory();
+        room = new Room("bench", directory);
+        for (int i = 0; i < members; i++) {
+            room.join(new Server.User("user" + i, Server.minID + i, new Benchmarks.DiscardConnection(framed), room));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.close();
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public Room.Membership broadcast() {
+        return room.broadcast(Frame.CHAT, Server.minID, line);
+    }
+}
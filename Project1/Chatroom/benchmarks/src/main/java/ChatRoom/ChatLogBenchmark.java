@@ -0,0 +1,56 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Appending to the chat record until the lines are committed, one at a time and in bursts that the writer
+// commits in groups. Durability is a system property: add -jvmArgsAppend -Dchat.log.durability=BATCH or MESSAGE to compare.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatLogBenchmark {
+
+    private static final int burst = 1000;
+
+    private Path directory;
+    private ChatLog chatLog;
+    private long appended;
+    private final String[] lines = new String[burst];
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.tempDirectory();
+        chatLog = new ChatLog(directory);
+        appended = chatLog.messageCount();
+        for (int i = 0; i < burst; i++) {
+            lines[i] = Benchmarks.chatLine(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        chatLog.close();
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public void appendOne() throws IOException {
+        chatLog.append(lines[0]);
+        Benchmarks.awaitCommitted(chatLog, ++appended);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(burst)
+    public void appendBurst() throws IOException {
+        for (String line : lines) {
+            chatLog.append(line);
+        }
+        appended += burst;
+        Benchmarks.awaitCommitted(chatLog, appended);
+    }
+}
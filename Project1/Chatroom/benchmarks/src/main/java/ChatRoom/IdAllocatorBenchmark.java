@@ -0,0 +1,43 @@
+package ChatRoom;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A user joining and leaving while a population of others holds their IDs; the cost should not grow with it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdAllocatorBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    int population;
+
+    private IdAllocator ids;
+
+    @Setup
+    public void setUp() {
+        ids = new IdAllocator(Server.minID, Integer.MAX_VALUE - Server.minID);
+        for (int i = 0; i < population; i++) {
+            ids.allocate();
+        }
+    }
+
+    @Benchmark
+    public int allocateAndRelease() {
+        int id = ids.allocate();
+        ids.release(id);
+        return id;
+    }
+
+    // Several threads accepting clients at once.
+    @Benchmark
+    @Threads(4)
+    public int allocateAndReleaseContended() {
+        int id = ids.allocate();
+        ids.release(id);
+        return id;
+    }
+}
@@ -0,0 +1,56 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// What membership costs: a user joining and leaving a room of some size, and /printReceiver listing the
+// receivers of a message. Sending a message only keeps the epoch, which costs nothing to measure.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    int members;
+
+    private Path directory;
+    private Room room;
+    private Server.User visitor;
+    private Room.Membership epoch;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.tempDirectory();
+        room = new Room("bench", directory);
+        Server.User[] users = new Server.User[members];
+        for (int i = 0; i < members; i++) {
+            users[i] = new Server.User("user" + i, Server.minID + i, null, room);
+            room.join(users[i]);
+        }
+        visitor = new Server.User("visitor", Server.minID + members, null, room);
+        epoch = new Room.Membership(1, users);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.close();
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public int joinAndLeave() {
+        room.join(visitor);
+        room.leave(visitor);
+        return room.size();
+    }
+
+    @Benchmark
+    public String printReceiver() {
+        return epoch.receivers();
+    }
+}
@@ -0,0 +1,42 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The per-message parsing the server does: the sender of a chat line, a frame off the wire, and the words
+// and sender name the search index takes from every committed line.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private final String line = Benchmarks.chatLine(42);
+    private final ByteBuffer frame = Frame.encode(Frame.CHAT, Server.minID, System.currentTimeMillis(), line);
+
+    @Benchmark
+    public int senderID() {
+        return Server.senderID(line);
+    }
+
+    @Benchmark
+    public Frame decodeFrame() throws IOException {
+        frame.rewind();
+        return Frame.decode(frame);
+    }
+
+    @Benchmark
+    public List<String> tokenize() {
+        return SearchIndex.tokenize(line);
+    }
+
+    @Benchmark
+    public String senderName() {
+        return SearchIndex.senderName(line);
+    }
+}
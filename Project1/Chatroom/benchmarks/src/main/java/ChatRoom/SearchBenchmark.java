@@ -0,0 +1,61 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// /search over chat records of several sizes, limited like the server limits it: a word of a few lines,
+// two words that are on many lines, a user name, and a regular expression, which reads the whole record
+// in chunks on the search pool (see ParallelSearch).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    int records;
+
+    private Path directory;
+    private Room room;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Benchmarks.tempDirectory();
+        room = new Room("bench", directory);
+        for (int i = 0; i < records; i++) {
+            room.chatLog.append(Benchmarks.chatLine(i));
+        }
+        Benchmarks.awaitCommitted(room.chatLog, records);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.close();
+        Benchmarks.delete(directory);
+    }
+
+    @Benchmark
+    public List<String> rareWord() throws IOException {
+        return room.search("unique" + records / 2, Server.maxSearchResults + 1);
+    }
+
+    @Benchmark
+    public List<String> commonWords() throws IOException {
+        return room.search("meeting tomorrow", Server.maxSearchResults + 1);
+    }
+
+    @Benchmark
+    public List<String> userName() throws IOException {
+        return room.search("user42", Server.maxSearchResults + 1);
+    }
+
+    @Benchmark
+    public List<String> regex() throws IOException {
+        return room.search("/unique" + records / 2 + "$/", Server.maxSearchResults + 1);
+    }
+}
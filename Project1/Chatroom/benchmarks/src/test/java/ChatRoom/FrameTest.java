@@ -0,0 +1,129 @@
+package ChatRoom;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Frames written by each encoder read back through Frame.decode with every header field where it was put.
+class FrameTest {
+
+    @Test
+    void encodedFrameDecodes() throws IOException {
+        ByteBuffer buffer = Frame.encode(Frame.CHAT, 10042, 1_760_000_000_123L, 0x0102030405060708L, "hé, 世界");
+        Frame frame = Frame.decode(buffer);
+        assertEquals(new Frame(Frame.CHAT, 10042, 1_760_000_000_123L, 0x0102030405060708L, "hé, 世界"), frame);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void deflatedFrameDecodes() throws IOException {
+        List<Frame> sent = List.of(
+                new Frame(Frame.RECORD, 10001, 1_760_000_000_000L, 41, "2026-01-01 00:00:01 [10001]alice : hi"),
+                new Frame(Frame.RECORD, 10002, 1_760_000_000_001L, 42, "2026-01-01 00:00:02 [10002]bob : hello"));
+        ByteBuffer frames = ByteBuffer.allocate(1024);
+        for (Frame frame : sent) {
+            frames.put(Frame.encode(frame.type(), frame.sender(), frame.time(), frame.sequence(), frame.payload()));
+        }
+
+        long before = System.currentTimeMillis();
+        ByteBuffer deflated = Frame.deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), frames.array(), frames.position());
+        long after = System.currentTimeMillis();
+
+        Frame outer = Frame.decode(deflated.duplicate());
+        assertEquals(Frame.DEFLATED, outer.type());
+        assertEquals(0, outer.sender());
+        assertTrue(outer.time() >= before && outer.time() <= after, "time " + outer.time());
+        assertEquals(0, outer.sequence());
+
+        byte[] bytes = new byte[deflated.remaining()];
+        deflated.get(bytes);
+        Frame.Reader reader = new Frame.Reader(new DataInputStream(new ByteArrayInputStream(bytes)));
+        for (Frame frame : sent) {
+            assertEquals(frame, reader.read());
+        }
+        assertNull(reader.read());
+    }
+
+    // The server resets a pooled deflater after every DEFLATED frame, so each one inflates on its own.
+    @Test
+    void deflatedFramesStandAlone() throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteBuffer first = Frame.encode(Frame.RECORD, 10001, 1_760_000_000_000L, 1, "the same words, the same words");
+        ByteBuffer second = Frame.encode(Frame.RECORD, 10001, 1_760_000_000_001L, 2, "the same words, the same words");
+        Frame.deflate(deflater, first.array(), first.limit());
+        deflater.reset();
+        ByteBuffer deflated = Frame.deflate(deflater, second.array(), second.limit());
+
+        byte[] bytes = new byte[deflated.remaining()];
+        deflated.get(bytes);
+        Frame.Reader reader = new Frame.Reader(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertEquals(Frame.decode(second.rewind()), reader.read());
+    }
+
+    // ChatClient encodes batches into one reused buffer; a long message first leaves its bytes where the headers
+    // of the later, shorter ones go.
+    @Test
+    void clientFramesDecode() throws Exception {
+        List<String> texts = List.of("x".repeat(2000), "a", "bb", "ccc", "y".repeat(500), "d");
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            CompletableFuture<List<Frame>> received = new CompletableFuture<>();
+            Thread.ofVirtual().start(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    ByteBuffer in = ByteBuffer.allocate(4 + 3 * Frame.maxLength);
+                    while (in.position() < Frame.preface.length) {
+                        channel.read(in);
+                    }
+                    in.flip().position(Frame.preface.length).compact();
+                    channel.write(UTF_8.encode("#Your ID is : 10007\n" + Frame.acknowledgement + "\n"));
+                    List<Frame> frames = new ArrayList<>();
+                    while (frames.size() < texts.size() && channel.read(in) >= 0) {
+                        in.flip();
+                        Frame frame;
+                        while ((frame = Frame.decode(in)) != null) {
+                            frames.add(frame);
+                        }
+                        in.compact();
+                    }
+                    received.complete(frames);
+                } catch (IOException e) {
+                    received.completeExceptionally(e);
+                }
+            });
+
+            long before = System.currentTimeMillis();
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            ChatClient client = ChatClient.connect("127.0.0.1", port, true, message -> { }, Thread.ofVirtual().factory());
+            for (String text : texts) {
+                assertTrue(client.send(text));
+                if (text.length() > 1000) {
+                    // Let it go out in a batch of its own.
+                    Thread.sleep(200);
+                }
+            }
+            List<Frame> frames = received.get(10, TimeUnit.SECONDS);
+            long after = System.currentTimeMillis();
+            assertEquals(texts.size(), frames.size());
+            for (int i = 0; i < texts.size(); i++) {
+                Frame frame = frames.get(i);
+                assertEquals(Frame.CHAT, frame.type());
+                assertEquals(10007, frame.sender());
+                assertTrue(frame.time() >= before && frame.time() <= after, "time " + frame.time());
+                assertEquals(0, frame.sequence());
+                assertEquals(texts.get(i), frame.payload());
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A connection on a blocking channel, used by the thread-per-client modes.
+// At most one drain task per connection runs on the executor at any time.
+class BlockingConnection extends Connection {
+    private final Executor executor;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    public BlockingConnection(SocketChannel channel, Executor executor) {
+        super(channel);
+        this.executor = executor;
+    }
+
+    protected void scheduleFlush() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    // Write until the queue is empty, then give up the drain slot.
+    private void drain() {
+        try {
+            while (true) {
+                // Gathering writes on a blocking channel write every byte, so this returns once the queue is empty.
+                writePending();
+                draining.set(false);
+                // Something may have been queued after the last poll but before the slot was released.
+                if (hasPending() && draining.compareAndSet(false, true)) {
+                    continue;
+                }
+                if (closing && channel.isOpen()) {
+                    abort();
+                }
+                return;
+            }
+        } catch (IOException e) {
+            draining.set(false);
+            abort();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package ChatRoom;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// A client without a console, for bots and services: connect, enter with a name, send messages and commands,
+// and get what the server sends through a listener.
+// Sending only queues the message; a writer thread drains the queue in batches, encoding each batch into
+// one reused buffer and writing it at once, so one connection can carry thousands of messages per second.
+// A full queue makes senders wait, which keeps a fast producer from running ahead of the connection.
+// Speaks the framed protocol, with compressed history and search results, unless told to use text lines.
+public final class ChatClient implements AutoCloseable {
+
+    // Whether history and search results are asked for compressed; see Frame.
+    static final boolean compression = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+
+    // Messages that may wait to be written before senders have to wait.
+    static final int queueCapacity = Integer.getInteger("chat.client.queueCapacity", 4096);
+
+    // How long connect() waits for the server to hand out an ID, and close() for the server to let go.
+    static final long replyTimeout = Long.getLong("chat.client.timeoutMillis", 10000);
+
+    // What a message from the server is: a line of chat, a line of the chat record (for /search and history),
+    // or anything else the server says, like greetings and replies to commands.
+    public enum Kind { CHAT, RECORD, NOTICE }
+
+    // Chat lines and history records from the framed protocol carry their sequence number in the room, which
+    // grows by one per message; a client that saw sequence n and missed n + 1 lost a message. Others carry 0.
+    public record Message(Kind kind, int sender, long time, long sequence, String text) { }
+
+    // Called on the thread reading the connection, one message at a time and in order;
+    // a slow listener holds up reading, not sending.
+    public interface Listener {
+        void received(Message message);
+
+        // The connection is gone; cause is null if the server closed it.
+        default void closed(IOException cause) {
+        }
+    }
+
+    // A message waiting to be written; the text is the payload of its frame.
+    private record Outgoing(byte type, String text) { }
+
+    private static final DateTimeFormatter lineTime = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final SocketChannel channel;
+    private final boolean framed;
+    private final Listener listener;
+    private final BlockingQueue<Outgoing> queue = new ArrayBlockingQueue<>(queueCapacity);
+    private final Thread reader;
+    private final Thread writer;
+    private final CountDownLatch idKnown = new CountDownLatch(1);
+    private final CountDownLatch ended = new CountDownLatch(1);
+    private volatile boolean open = true;
+    private volatile int id;
+    private volatile String name;
+
+    // Only touched by the writer: the buffer a batch is encoded into, the encoder, and the text protocol's
+    // timestamp of the current second, which is formatted once per second rather than per message.
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4 + 3 * Frame.maxLength);
+    private final CharsetEncoder encoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final List<Outgoing> batch = new ArrayList<>();
+    private long stampSecond = -1;
+    private String stamp;
+
+    private ChatClient(SocketChannel channel, boolean framed, Listener listener, ThreadFactory threads) {
+        this.channel = channel;
+        this.framed = framed;
+        this.listener = listener;
+        reader = threads.newThread(this::read);
+        writer = threads.newThread(this::write);
+    }
+
+    // Connect on the framed protocol with virtual threads, and wait for the server to hand out an ID.
+    public static ChatClient connect(String host, int port, Listener listener) throws IOException {
+        return connect(host, port, true, listener, Thread.ofVirtual().factory());
+    }
+
+    public static ChatClient connect(String host, int port, boolean framed, Listener listener, ThreadFactory threads)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        ChatClient client = new ChatClient(channel, framed, listener, threads);
+        if (framed) {
+            channel.write(ByteBuffer.wrap(compression ? Frame.compressedPreface : Frame.preface));
+        }
+        client.reader.start();
+        client.writer.start();
+        try {
+            if (!client.idKnown.await(replyTimeout, TimeUnit.MILLISECONDS) || !client.open) {
+                client.abort();
+                throw new IOException("The server did not hand out an ID.");
+            }
+        } catch (InterruptedException e) {
+            client.abort();
+            throw new InterruptedIOException();
+        }
+        return client;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Enter the chat room with a name; the server announces the user to the lobby.
+    public boolean enter(String name) {
+        this.name = name;
+        return queue(Frame.NAME, name);
+    }
+
+    // Enter after reconnecting: instead of the latest history, the server sends the lobby's records after the
+    // sequence number of the last message seen there, so that nothing is missed or shown twice.
+    // Sequence numbers are per room; see join() for going back to another room.
+    public boolean enter(String name, long resumeAfter) {
+        return command("resume", Long.toString(resumeAfter)) && enter(name);
+    }
+
+    // Move to a room, being sent its records after the sequence number of the last message seen in it.
+    public boolean join(String room, long resumeAfter) {
+        return command("resume", Long.toString(resumeAfter)) && command("join", room);
+    }
+
+    // Send a line of chat to the current room.
+    public boolean send(String text) {
+        return queue(Frame.CHAT, text);
+    }
+
+    // Run a command, like command("search", "lunch OR dinner") or command("rooms", null); see /help.
+    public boolean command(String command, String argument) {
+        return queue(Frame.COMMAND, argument == null ? command : command + " " + argument);
+    }
+
+    // Queue a message, waiting while the queue is full. Returns false once the connection is closed.
+    private boolean queue(byte type, String text) {
+        if (SearchIndex.utf8Length(text) > Frame.maxLength - Frame.headerBytes) {
+            throw new IllegalArgumentException("A message can be at most " + (Frame.maxLength - Frame.headerBytes) + " bytes.");
+        }
+        try {
+            while (open) {
+                if (queue.offer(new Outgoing(type, text), 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // Leave with /exit once everything queued is written, and wait for the server to close the connection.
+    public void close() {
+        if (open && queue(Frame.COMMAND, "exit")) {
+            try {
+                ended.await(replyTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        abort();
+    }
+
+    // Close the connection right away.
+    private void abort() {
+        open = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        writer.interrupt();
+    }
+
+    // The writer thread: wait for a message, take whatever else is queued behind it, and write them in one go.
+    private void write() {
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                long now = System.currentTimeMillis();
+                for (Outgoing message : batch) {
+                    encode(message, now);
+                }
+                batch.clear();
+                flush();
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    // Encode a message at the end of the buffer, writing out what is already there first if it might not fit.
+    private void encode(Outgoing message, long now) throws IOException {
+        String text = framed ? message.text : textForm(message, now) + "\n";
+        int longest = 4 + Frame.headerBytes + 3 * text.length();
+        if (buffer.remaining() < longest) {
+            flush();
+        }
+        if (buffer.remaining() < longest) {
+            // Only a text line can be this long; it goes out on its own.
+            ByteBuffer line = UTF_8.encode(text);
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            return;
+        }
+        int start = buffer.position();
+        if (framed) {
+            buffer.position(start + 4 + Frame.headerBytes);
+        }
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+        if (framed) {
+            buffer.putInt(start, buffer.position() - start - 4)
+                    .put(start + 4, message.type)
+                    .putInt(start + 5, id)
+                    .putLong(start + 9, now)
+                    .putLong(start + 17, 0);
+        }
+    }
+
+    // A message as the text protocol has it: chat lines carry their time and sender, commands end with the ID.
+    private String textForm(Outgoing message, long now) {
+        switch (message.type) {
+            case Frame.NAME:
+                return "@" + id + "@" + message.text;
+            case Frame.CHAT:
+                long second = now / 1000;
+                if (second != stampSecond) {
+                    stampSecond = second;
+                    stamp = lineTime.format(Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault()));
+                }
+                return stamp + " [" + id + "]" + name + " : " + message.text;
+            case Frame.PONG:
+                return "/pong" + id;
+            default:
+                int space = message.text.indexOf(' ');
+                return space < 0
+                        ? "/" + message.text + id
+                        : "/" + message.text.substring(0, space) + "(" + message.text.substring(space + 1) + ")" + id;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // The reader thread: the greeting comes as text lines, then frames or more lines, depending on the protocol.
+    private void read() {
+        IOException cause = null;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            String line;
+            while ((line = Frame.readTextLine(input)) != null && !(framed && line.startsWith(Frame.acknowledgement))) {
+                receivedLine(line);
+            }
+            if (line != null && framed) {
+                Frame.Reader frames = new Frame.Reader(input);
+                Frame frame;
+                while ((frame = frames.read()) != null) {
+                    receivedFrame(frame);
+                }
+            }
+        } catch (IOException e) {
+            cause = open ? e : null;
+        } finally {
+            open = false;
+            idKnown.countDown();
+            ended.countDown();
+            writer.interrupt();
+            listener.closed(cause);
+        }
+    }
+
+    private void receivedFrame(Frame frame) {
+        switch (frame.type()) {
+            case Frame.PING -> queue.offer(new Outgoing(Frame.PONG, ""));
+            case Frame.PONG -> { }
+            case Frame.CHAT -> listener.received(new Message(Kind.CHAT, frame.sender(), frame.time(), frame.sequence(), frame.payload()));
+            case Frame.RECORD -> listener.received(new Message(Kind.RECORD, frame.sender(), frame.time(), frame.sequence(), frame.payload()));
+            default -> listener.received(new Message(Kind.NOTICE, frame.sender(), frame.time(), 0, frame.payload()));
+        }
+    }
+
+    // Text lines do not say what they are; the server's own lines start with '#' or are replies without a sender.
+    private void receivedLine(String line) {
+        if (line.equals("#Ping")) {
+            queue.offer(new Outgoing(Frame.PONG, ""));
+            return;
+        }
+        if (line.startsWith("#Your ID is : ")) {
+            id = Integer.parseInt(line.substring(14));
+            idKnown.countDown();
+            // Ask to be pinged, which a text client only is once it says it answers.
+            if (!framed) {
+                queue.offer(new Outgoing(Frame.COMMAND, "heartbeat"));
+            }
+        }
+        int sender = Server.senderID(line);
+        listener.received(new Message(sender == 0 ? Kind.NOTICE : Kind.CHAT, sender, System.currentTimeMillis(), 0, line));
+    }
+}
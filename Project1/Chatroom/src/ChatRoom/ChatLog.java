@@ -0,0 +1,929 @@
+package ChatRoom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// The chat record: a directory of fixed-size segments (see LogSegment) addressed by global byte offsets,
+// with a sparse message number / timestamp index so that history can be read from any point without a scan.
+// Messages are queued and committed in groups, one gathering write per group: batchInterval after the first
+// message of a group is queued, a writer commits everything queued by then, batchBytes at a time.
+// Maintenance deletes the segments that fall out of the retention policy and compresses the older closed ones;
+// reads go through LogSegment.view() and so do not care which segments are compressed.
+// The writers and the maintenance thread are shared by every chat record, so an open room costs no threads.
+// The queue is bounded, so that appending waits when the disk cannot keep up. If a commit fails, appending
+// fails at once until a retry, after reopening the segments, commits what was queued.
+// A checkpoint file records the size and message count of the segments, so that on startup only the
+// segments written after it are read, and restart time does not grow with the history.
+class ChatLog implements AutoCloseable {
+
+    // When the chat record is forced to disk.
+    enum Durability {
+        NONE,       // leave it to the operating system
+        BATCH,      // once per group commit
+        MESSAGE     // after every single message
+    }
+
+    static final Durability durability = Durability.valueOf(System.getProperty("chat.log.durability", "NONE"));
+    static final long batchInterval = Long.getLong("chat.log.batchIntervalMillis", 5);
+    static final int batchBytes = Integer.getInteger("chat.log.batchBytes", 64 * 1024);
+
+    // Messages that may wait to be committed, and how long appending waits for room in the queue before failing.
+    static final int queueCapacity = Integer.getInteger("chat.log.queueCapacity", 64 * 1024);
+    static final long appendTimeout = Long.getLong("chat.log.appendTimeoutMillis", 1000);
+
+    // How long after a failed commit it is tried again.
+    static final long retryInterval = Long.getLong("chat.log.retryMillis", 1000);
+
+    // A new segment is started once the active one would grow past this size.
+    static final int segmentBytes = Integer.getInteger("chat.log.segmentBytes", 16 * 1024 * 1024);
+
+    // A new segment is also started once the first message of the active one is older than this.
+    static final long segmentMillis = Long.getLong("chat.log.segmentMillis", TimeUnit.DAYS.toMillis(1));
+
+    // Closed segments are deleted, oldest first, once all their messages are older than retentionMillis
+    // or while the segments together take more than retentionBytes on disk. Negative values keep everything.
+    static final long retentionMillis = Long.getLong("chat.log.retentionMillis", -1);
+    static final long retentionBytes = Long.getLong("chat.log.retentionBytes", -1);
+
+    // This many of the newest closed segments stay uncompressed; older ones are gzipped. Negative disables compression.
+    static final int hotSegments = Integer.getInteger("chat.log.hotSegments", 1);
+    static final long maintenanceInterval = Long.getLong("chat.log.maintenanceSeconds", 60);
+
+    // One sparse index entry every this many messages (and at the start of every segment).
+    static final int indexInterval = Integer.getInteger("chat.log.indexInterval", 64);
+
+    // Threads committing the chat records of all rooms; a chat record is only written by one of them at a time.
+    static final int writerThreads = Integer.getInteger("chat.log.writerThreads", 2);
+    private static final ScheduledExecutorService writers = sharedPool(writerThreads, "chat-log-writer");
+    private static final ScheduledExecutorService maintainers = sharedPool(1, "chat-log-maintenance");
+
+    private static final int checkpointMagic = 0x43484350;
+    private static final int checkpointVersion = 1;
+
+    private static final DateTimeFormatter lineTime = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Told about every message once it is in the chat record, with the byte offset of its line.
+    // Also told when the segments before an offset have been deleted.
+    interface Listener {
+        void committed(long offset, String line);
+
+        default void truncated(long start) {
+        }
+    }
+
+    // A queued message and when it was queued, to measure commit latency.
+    private record Pending(String line, long queuedAt) { }
+
+    private final Path directory;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(queueCapacity);
+    private volatile Listener listener;
+
+    // Set from when a writer's turn is scheduled until it starts; the write lock is held while committing.
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // The group being committed and its size, guarded by the write lock; after a failed commit, what is to be retried.
+    private final List<Pending> group = new ArrayList<>();
+    private int groupBytes = 0;
+
+    // Why the last commit failed, until a retry succeeds; null while the record is written normally.
+    private volatile IOException failure;
+
+    // Held while maintenance runs; once closed, set under it and the append lock, nothing is appended or maintained.
+    private final ScheduledFuture<?> maintenance;
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+    private volatile boolean closed = false;
+
+    // Every segment in offset order; replaced as a whole when a segment is added, compressed or deleted.
+    private volatile LogSegment[] segments;
+    private final ReentrantLock segmentsLock = new ReentrantLock();
+
+    // Held while the checkpoint is written, which the server's timer and close() may both do.
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
+    // Number of the first message still in the record, after retention.
+    private volatile long firstMessage;
+
+    // Number of messages (lines) in the record, and the offset just past the last one.
+    private volatile long messageCount;
+    private volatile long end;
+
+    // Number of messages appended so far, committed or not; the next one appended gets this number.
+    // Appending holds the append lock, so numbers follow the order of the queue, which is the order of the record.
+    private long appended;
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    // Signalled after every group commit, for awaitCommitted().
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitDone = commitLock.newCondition();
+
+    // Metrics.
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    // Open the chat record in a directory, importing a plain-text record of the same name if there is one.
+    public ChatLog(Path directory) throws IOException {
+        this.directory = directory;
+        Path legacy = directory.resolveSibling(directory.getFileName() + ".txt");
+        if (!Files.exists(directory)) {
+            Files.createDirectories(directory);
+            if (Files.exists(legacy)) {
+                Files.move(legacy, directory.resolve(LogSegment.fileName(0, ".log")));
+                Log.info(Log.Category.CHAT_LOG, "Moved " + legacy + " into " + directory + ".");
+            }
+        }
+        recover();
+        appended = messageCount;
+        maintenance = maintainers.scheduleWithFixedDelay(this::maintain, maintenanceInterval, maintenanceInterval, TimeUnit.SECONDS);
+    }
+
+    private static ScheduledExecutorService sharedPool(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        return pool;
+    }
+
+    private void maintain() {
+        maintenanceLock.lock();
+        try {
+            if (!closed) {
+                retain();
+                compressCold();
+            }
+        } catch (IOException e) {
+            Log.error(Log.Category.CHAT_LOG, "Chat record maintenance of " + directory + " failed.", e);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    // Open every segment, rebuild the index entries the last run did not write, and count the messages.
+    // The segments the checkpoint covers, unchanged since, are taken as they are without reading them.
+    private void recover() throws IOException {
+        long started = System.nanoTime();
+        Map<Long, long[]> checkpoint = readCheckpoint();
+        int restored = 0;
+        TreeSet<Long> bases = new TreeSet<>();
+        Set<Long> compressed = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{log,log.gz,log.gz.tmp}")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.indexOf('.')));
+                if (name.endsWith(".tmp")) {
+                    // A compression that did not finish.
+                    Files.delete(file);
+                }
+                else if (name.endsWith(".gz")) {
+                    compressed.add(base);
+                }
+                else {
+                    bases.add(base);
+                }
+            }
+        }
+        // If the plain segment is still there, the compressed copy was made just before a crash; keep the plain one.
+        for (long base : bases) {
+            if (compressed.remove(base)) {
+                Files.delete(directory.resolve(LogSegment.fileName(base, ".log.gz")));
+            }
+        }
+        bases.addAll(compressed);
+
+        List<LogSegment> opened = new ArrayList<>();
+        long messageNumber = 0;
+        for (long base : bases) {
+            LogSegment segment = LogSegment.open(directory, base, compressed.contains(base));
+            long[] saved = checkpoint.get(base);
+            if (saved != null && saved[0] != segment.size()) {
+                saved = null;
+            }
+            if (saved == null) {
+                segment.truncateToLastLine();
+            }
+
+            // Retention may have deleted the first segments; numbering carries on from the first one left.
+            if (opened.isEmpty() && segment.firstMessage() > 0) {
+                messageNumber = segment.firstMessage();
+            }
+
+            // A segment's entries are trusted only if the first one is its first message.
+            long[] first = segment.floorByMessage(messageNumber);
+            long[] last = segment.lastEntry();
+            if (first == null || first[0] != messageNumber || first[2] != 0) {
+                segment.clearEntries();
+                last = null;
+                saved = null;
+            }
+            if (saved != null) {
+                messageNumber = saved[1];
+                restored++;
+            }
+            else {
+                messageNumber = indexTail(segment, last, messageNumber);
+            }
+            opened.add(segment);
+        }
+        if (opened.isEmpty()) {
+            LogSegment segment = LogSegment.open(directory, 0);
+            segment.append(new ByteBuffer[] { UTF_8.encode("[CHAT RECORD]\n") }, 0, 1);
+            segment.addEntry(0, System.currentTimeMillis(), 0);
+            messageNumber = 1;
+            opened.add(segment);
+        }
+        segments = opened.toArray(new LogSegment[0]);
+        firstMessage = Math.max(0, segments[0].firstMessage());
+        messageCount = messageNumber;
+        end = segments[segments.length - 1].end();
+        Log.info(Log.Category.CHAT_LOG, String.format("Opened %s: %d segments, %d of them from the checkpoint, in %d ms.",
+                directory, segments.length, restored, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+    }
+
+    // The segments of the checkpoint by base offset, as {size, number of the message after the segment}.
+    // A missing or unreadable checkpoint only means that every segment is read.
+    private Map<Long, long[]> readCheckpoint() {
+        Map<Long, long[]> saved = new HashMap<>();
+        Path path = directory.resolve("checkpoint");
+        if (!Files.exists(path)) {
+            return saved;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != checkpointMagic || in.readInt() != checkpointVersion) {
+                throw new IOException("unknown checkpoint format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long base = in.readLong();
+                saved.put(base, new long[] { in.readLong(), in.readLong() });
+            }
+        } catch (IOException e) {
+            Log.warn(Log.Category.CHAT_LOG, "Ignoring the checkpoint of " + directory + ": " + e.getMessage());
+            saved.clear();
+        }
+        return saved;
+    }
+
+    // Record the size and message count of the closed segments, replacing the previous checkpoint atomically.
+    // The active one is only recorded once the writer has stopped; until then its size and the message count
+    // cannot be read together, and on startup only its lines after the last index entry are read anyway.
+    void checkpoint() throws IOException {
+        checkpoint(false);
+    }
+
+    private void checkpoint(boolean writerStopped) throws IOException {
+        LogSegment[] current = segments;
+        List<long[]> saved = new ArrayList<>();
+        for (int i = 0; i < current.length - 1; i++) {
+            long next = current[i + 1].firstMessage();
+            if (next < 0) {
+                break;
+            }
+            saved.add(new long[] { current[i].base, current[i].size(), next });
+        }
+        if (writerStopped) {
+            LogSegment active = current[current.length - 1];
+            saved.add(new long[] { active.base, active.size(), messageCount });
+        }
+        Path path = directory.resolve("checkpoint");
+        Path temporary = directory.resolve("checkpoint.tmp");
+        checkpointLock.lock();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(checkpointMagic);
+                out.writeInt(checkpointVersion);
+                out.writeInt(saved.size());
+                for (long[] segment : saved) {
+                    out.writeLong(segment[0]);
+                    out.writeLong(segment[1]);
+                    out.writeLong(segment[2]);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    // Count the lines of a segment after its last index entry, adding the entries that are due on the way.
+    // Returns the message number following the segment.
+    private long indexTail(LogSegment segment, long[] last, long firstMessage) throws IOException {
+        ByteBuffer view = segment.view();
+        long message = last == null ? firstMessage : last[0];
+        long time = last == null ? 0 : last[1];
+        long fallbackTime = Files.getLastModifiedTime(segment.path).toMillis();
+        int position = last == null ? 0 : (int) last[2];
+        boolean indexed = last != null;
+        while (position < view.limit()) {
+            int lineEnd = position;
+            while (view.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (!indexed && (message % indexInterval == 0 || position == 0)) {
+                time = Math.max(time, timeOf(view, position, lineEnd, fallbackTime));
+                segment.addEntry(message, time, position);
+            }
+            indexed = false;
+            message++;
+            position = lineEnd + 1;
+        }
+        return message;
+    }
+
+    // The time at the start of a chat line, or the fallback for lines that do not start with one.
+    private static long timeOf(ByteBuffer view, int start, int end, long fallback) {
+        if (end - start < 19) {
+            return fallback;
+        }
+        byte[] stamp = new byte[19];
+        view.get(start, stamp);
+        try {
+            return LocalDateTime.parse(new String(stamp, UTF_8), lineTime).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return fallback;
+        }
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Offset of the first line still in the record.
+    long start() {
+        return segments[0].base;
+    }
+
+    // Number of the first message still in the record.
+    long firstMessage() {
+        return firstMessage;
+    }
+
+    // Offset just past the last committed line.
+    long end() {
+        return end;
+    }
+
+    // Number of committed messages; message numbers run from 0 to messageCount() - 1.
+    long messageCount() {
+        return messageCount;
+    }
+
+    // Queue a message for the chat record and return the message number it will have; never blocks on I/O,
+    // but waits while the queue is full. Fails if the record cannot be written, is closed, or stays full.
+    // The first message queued while no writer is due schedules one, batchInterval later.
+    long append(String line) throws IOException {
+        long number;
+        appendLock.lock();
+        try {
+            IOException failed = failure;
+            if (failed != null) {
+                throw new IOException("The chat record of " + directory + " cannot be written: " + failed.getMessage(), failed);
+            }
+            if (closed) {
+                throw new IOException("The chat record of " + directory + " is closed.");
+            }
+            if (!queue.offer(new Pending(line, System.nanoTime()), appendTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("The chat record of " + directory + " is not keeping up.");
+            }
+            number = appended++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            appendLock.unlock();
+        }
+        if (draining.compareAndSet(false, true)) {
+            writers.schedule(this::drain, batchInterval, TimeUnit.MILLISECONDS);
+        }
+        return number;
+    }
+
+    // Number of messages appended so far; the next one appended gets this number.
+    long appended() {
+        appendLock.lock();
+        try {
+            return appended;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Wait until the messages before a number are committed, and so can be read, or until the timeout passes
+    // or a commit fails. Returns whether they are.
+    boolean awaitCommitted(long count, long timeoutMillis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        commitLock.lock();
+        try {
+            while (messageCount < count) {
+                if (nanos <= 0 || failure != null) {
+                    return false;
+                }
+                nanos = commitDone.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // A writer's turn: commit what is queued, then hand the record back, scheduling another turn right away
+    // if more was queued meanwhile, so that a busy room takes turns with the others rather than a writer of its own.
+    // While the record is failing, turns are left to the retries.
+    private void drain() {
+        writeLock.lock();
+        try {
+            draining.set(false);
+            if (failure == null) {
+                commitQueued();
+            }
+        } catch (IOException e) {
+            failed(e);
+        } finally {
+            writeLock.unlock();
+        }
+        if (failure == null && !queue.isEmpty() && draining.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+
+    // Commit everything queued, in groups of about batchBytes, starting with the group of a failed commit.
+    // Called with the write lock held; if a commit fails, its group is kept for the retry.
+    private void commitQueued() throws IOException {
+        Pending next;
+        do {
+            next = queue.poll();
+            if (next != null) {
+                group.add(next);
+                groupBytes += next.line.length() + 1;
+            }
+            if (!group.isEmpty() && (next == null || groupBytes >= batchBytes)) {
+                commit(group);
+                group.clear();
+                groupBytes = 0;
+            }
+        } while (next != null);
+    }
+
+    // Stop appending and committing after a failed commit, and wake whoever waits for one; retried later.
+    private void failed(IOException e) {
+        Log.error(Log.Category.CHAT_LOG, "Writing the chat record of " + directory + " failed; retrying in " + retryInterval + " ms.", e);
+        failure = e;
+        commitLock.lock();
+        try {
+            commitDone.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
+        writers.schedule(this::retry, retryInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Open the segments again, which drops what a failed write left of a line, then commit the rest of the
+    // failed group and everything queued since; appending resumes once that worked.
+    private void retry() {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            reopen();
+            commitQueued();
+            failure = null;
+            Log.info(Log.Category.CHAT_LOG, "Writing the chat record of " + directory + " works again.");
+        } catch (IOException e) {
+            failed(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Open the segments from disk as on startup. Messages of the failed group that made it to disk whole are
+    // taken out of the group, and passed to the listener as if just committed.
+    private void reopen() throws IOException {
+        maintenanceLock.lock();
+        try {
+            long committed = messageCount;
+            long committedEnd = end;
+            for (LogSegment segment : segments) {
+                segment.close();
+            }
+            recover();
+            int written = (int) Math.min(group.size(), Math.max(0, messageCount - committed));
+            group.subList(0, written).clear();
+            groupBytes = 0;
+            for (Pending pending : group) {
+                groupBytes += pending.line.length() + 1;
+            }
+            Listener current = listener;
+            if (current != null && written > 0) {
+                scan(committedEnd, written, current);
+            }
+            commitLock.lock();
+            try {
+                commitDone.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+            messages.addAndGet(written);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    // Why the record cannot be written, or null if it can.
+    String failure() {
+        IOException failed = failure;
+        return failed == null ? null : failed.toString();
+    }
+
+    // Write a group of messages with as few gathering writes as the segment boundaries allow,
+    // and force them as the durability policy asks.
+    private void commit(List<Pending> group) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[group.size()];
+        long[] offsets = new long[group.size()];
+        long now = System.currentTimeMillis();
+        LogSegment active = segments[segments.length - 1];
+        long message = messageCount;
+        long position = end;
+        int unwritten = 0;
+
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = UTF_8.encode(group.get(i).line + "\n");
+            int length = buffers[i].remaining();
+            boolean full = position - active.base + length > segmentBytes;
+            boolean old = now - active.firstTime() >= segmentMillis;
+            if (position > active.base && (full || old)) {
+                write(active, buffers, unwritten, i);
+                unwritten = i;
+                active = roll(position);
+            }
+            if (message % indexInterval == 0 || position == active.base) {
+                active.addEntry(message, now, position - active.base);
+            }
+            offsets[i] = position;
+            position += length;
+            message++;
+        }
+        write(active, buffers, unwritten, buffers.length);
+        if (durability == Durability.BATCH) {
+            active.force();
+        }
+        end = position;
+        commitLock.lock();
+        try {
+            messageCount = message;
+            commitDone.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
+
+        Listener current = listener;
+        if (current != null) {
+            for (int i = 0; i < offsets.length; i++) {
+                current.committed(offsets[i], group.get(i).line);
+            }
+        }
+
+        long committedAt = System.nanoTime();
+        batches.incrementAndGet();
+        messages.addAndGet(group.size());
+        maxBatch.accumulateAndGet(group.size(), Math::max);
+        for (Pending pending : group) {
+            long latency = committedAt - pending.queuedAt;
+            totalLatencyNanos.addAndGet(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            Metrics.logAppend.record(latency);
+        }
+    }
+
+    private void write(LogSegment segment, ByteBuffer[] buffers, int from, int to) throws IOException {
+        if (durability == Durability.MESSAGE) {
+            for (int i = from; i < to; i++) {
+                segment.append(buffers, i, 1);
+                segment.force();
+            }
+        }
+        else if (to > from) {
+            segment.append(buffers, from, to - from);
+        }
+    }
+
+    // Close the active segment and start a new one at an offset.
+    private LogSegment roll(long base) throws IOException {
+        segments[segments.length - 1].trim();
+        segments[segments.length - 1].force();
+        LogSegment segment = LogSegment.open(directory, base);
+        segmentsLock.lock();
+        try {
+            LogSegment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[grown.length - 1] = segment;
+            segments = grown;
+        } finally {
+            segmentsLock.unlock();
+        }
+        return segment;
+    }
+
+    // Delete the oldest closed segments that the retention policy no longer covers.
+    private void retain() throws IOException {
+        if (retentionMillis < 0 && retentionBytes < 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        LogSegment[] expired;
+        segmentsLock.lock();
+        try {
+            LogSegment[] current = segments;
+            long total = 0;
+            for (LogSegment segment : current) {
+                total += segment.diskBytes();
+            }
+            int count = 0;
+            // The active segment is never deleted.
+            while (count < current.length - 1) {
+                // Every message of a segment is older than the first message of the next one.
+                long newerThan = current[count + 1].firstTime();
+                boolean old = retentionMillis >= 0 && newerThan > 0 && newerThan <= cutoff;
+                boolean over = retentionBytes >= 0 && total > retentionBytes;
+                if (!old && !over) {
+                    break;
+                }
+                total -= current[count].diskBytes();
+                count++;
+            }
+            if (count == 0) {
+                return;
+            }
+            expired = Arrays.copyOf(current, count);
+            segments = Arrays.copyOfRange(current, count, current.length);
+            firstMessage = Math.max(firstMessage, segments[0].firstMessage());
+        } finally {
+            segmentsLock.unlock();
+        }
+        for (LogSegment segment : expired) {
+            segment.delete();
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.truncated(start());
+        }
+        Log.info(Log.Category.CHAT_LOG, "Deleted " + expired.length + " expired chat record segments.");
+    }
+
+    // Replace the closed segments older than the hot ones by compressed copies.
+    private void compressCold() throws IOException {
+        if (hotSegments < 0) {
+            return;
+        }
+        LogSegment[] current = segments;
+        for (int i = 0; i < current.length - 1 - hotSegments; i++) {
+            LogSegment segment = current[i];
+            if (segment.compressed) {
+                continue;
+            }
+            LogSegment compressed = segment.compress(directory);
+            segmentsLock.lock();
+            try {
+                LogSegment[] replaced = segments.clone();
+                for (int j = 0; j < replaced.length; j++) {
+                    if (replaced[j] == segment) {
+                        replaced[j] = compressed;
+                    }
+                }
+                segments = replaced;
+            } finally {
+                segmentsLock.unlock();
+            }
+            segment.deleteData();
+        }
+    }
+
+    // The segment holding an offset.
+    private LogSegment segmentFor(long offset) {
+        LogSegment[] current = segments;
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (current[middle].base <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return current[low];
+    }
+
+    // Read the line starting at an offset, or null if retention has deleted it.
+    String readLine(long offset) throws IOException {
+        if (offset < start()) {
+            return null;
+        }
+        LogSegment segment = segmentFor(offset);
+        ByteBuffer view = segment.view();
+        int start = (int) (offset - segment.base);
+        int lineEnd = start;
+        while (lineEnd < view.limit() && view.get(lineEnd) != '\n') {
+            lineEnd++;
+        }
+        byte[] bytes = new byte[lineEnd - start];
+        view.get(start, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    // Pass every committed line from an offset onwards to a listener, e.g. to catch an index up.
+    void scan(long from, Listener to) throws IOException {
+        scan(from, Long.MAX_VALUE, to);
+    }
+
+    // Pass at most count committed lines from an offset onwards to a listener.
+    void scan(long from, long count, Listener to) throws IOException {
+        long limit = end;
+        for (LogSegment segment : segments) {
+            if (segment.end() <= from || count <= 0) {
+                continue;
+            }
+            ByteBuffer view = segment.view();
+            int position = (int) Math.max(0, from - segment.base);
+            int stop = (int) Math.min(view.limit(), limit - segment.base);
+            while (position < stop && count > 0) {
+                int lineEnd = position;
+                while (view.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                byte[] bytes = new byte[lineEnd - position];
+                view.get(position, bytes);
+                to.committed(segment.base + position, new String(bytes, UTF_8));
+                position = lineEnd + 1;
+                count--;
+            }
+        }
+    }
+
+    // Offsets splitting the committed record from an offset on into pieces of about chunkBytes that never
+    // straddle a segment, for reading them in parallel; piece i runs from bounds[i] to bounds[i + 1].
+    long[] split(long from, int chunkBytes) {
+        long limit = end;
+        from = Math.max(from, start());
+        List<Long> bounds = new ArrayList<>();
+        for (LogSegment segment : segments) {
+            long segmentEnd = Math.min(segment.end(), limit);
+            if (segmentEnd <= from) {
+                continue;
+            }
+            for (long bound = Math.max(from, segment.base); bound < segmentEnd; bound += chunkBytes) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(Math.max(from, limit));
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    // Pass the committed lines starting from one offset up to another to a listener. The lower offset need not
+    // be the start of a line, and a line starting before the upper one is passed whole, so that consecutive
+    // pieces of split() pass every line once.
+    void scanBetween(long from, long to, Listener listener) throws IOException {
+        if (from >= to || from < start()) {
+            return;
+        }
+        LogSegment segment = segmentFor(from);
+        ByteBuffer view = segment.view();
+        int position = (int) (from - segment.base);
+        int stop = (int) Math.min(view.limit(), Math.min(to, end) - segment.base);
+        if (position > 0 && view.get(position - 1) != '\n') {
+            while (position < stop && view.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+        int limit = (int) Math.min(view.limit(), end - segment.base);
+        while (position < stop) {
+            int lineEnd = position;
+            while (lineEnd < limit && view.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            byte[] bytes = new byte[lineEnd - position];
+            view.get(position, bytes);
+            listener.committed(segment.base + position, new String(bytes, UTF_8));
+            position = lineEnd + 1;
+        }
+    }
+
+    // The offset of a message, found from the closest index entry before it.
+    long offsetOfMessage(long message) throws IOException {
+        if (message >= messageCount) {
+            return end;
+        }
+        if (message <= firstMessage) {
+            return start();
+        }
+        LogSegment[] current = segments;
+        for (int i = current.length - 1; i >= 0; i--) {
+            long[] entry = current[i].floorByMessage(message);
+            if (entry != null) {
+                ByteBuffer view = current[i].view();
+                int position = (int) entry[2];
+                for (long skip = message - entry[0]; skip > 0; skip--) {
+                    while (view.get(position) != '\n') {
+                        position++;
+                    }
+                    position++;
+                }
+                return current[i].base + position;
+            }
+        }
+        return start();
+    }
+
+    // An offset at or before the first message committed at or after a time.
+    long offsetAtTime(long timeMillis) {
+        LogSegment[] current = segments;
+        for (int i = current.length - 1; i >= 0; i--) {
+            long[] entry = current[i].floorByTime(timeMillis);
+            if (entry != null) {
+                return current[i].base + entry[2];
+            }
+        }
+        return start();
+    }
+
+    // Up to count messages starting at a message number, in order.
+    List<String> readMessages(long from, int count) throws IOException {
+        List<String> lines = new ArrayList<>(count);
+        from = Math.max(from, firstMessage);
+        scan(offsetOfMessage(from), Math.min(count, messageCount - from), (offset, line) -> lines.add(line));
+        return lines;
+    }
+
+    // Batch size and commit latency so far.
+    String stats() {
+        long batchCount = batches.get();
+        long messageTotal = messages.get();
+        double averageBatch = batchCount == 0 ? 0 : (double) messageTotal / batchCount;
+        double averageLatency = messageTotal == 0 ? 0 : totalLatencyNanos.get() / 1e6 / messageTotal;
+        LogSegment[] current = segments;
+        int compressed = 0;
+        for (LogSegment segment : current) {
+            compressed += segment.compressed ? 1 : 0;
+        }
+        return String.format("chat log: %d messages in %d batches (avg %.1f, max %d per batch), commit latency avg %.2f ms, max %.2f ms, %d segments (%d compressed)",
+                messageTotal, batchCount, averageBatch, maxBatch.get(), averageLatency, maxLatencyNanos.get() / 1e6, current.length, compressed);
+    }
+
+    // Commit everything queued so far and close the segments; nothing is to be appended any more.
+    public void close() throws IOException {
+        maintenance.cancel(false);
+        maintenanceLock.lock();
+        appendLock.lock();
+        try {
+            closed = true;
+        } finally {
+            appendLock.unlock();
+            maintenanceLock.unlock();
+        }
+        writeLock.lock();
+        try {
+            if (failure != null) {
+                reopen();
+            }
+            commitQueued();
+        } finally {
+            writeLock.unlock();
+        }
+        for (LogSegment segment : segments) {
+            segment.trim();
+            segment.force();
+        }
+        checkpoint(true);
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+}
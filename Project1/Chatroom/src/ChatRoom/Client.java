@@ -1,44 +1,48 @@
 package ChatRoom;
 
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.channels.Channels;
-import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.time.*;
-import java.time.format.DateTimeFormatter;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.concurrent.ThreadFactory;
 
 // Client Side Code
+// A console on top of ChatClient: lines typed in are sent, the first one being the name, and whatever
+// the server sends is printed.
+// Speaks the framed protocol (see Frame) unless run with -Dchat.protocol=text, and asks for its history
+// and search results compressed unless run with -Dchat.compression=false.
 public class Client {
-    private PrintWriter writer;
-    private BufferedReader reader;
+    static final boolean framed = !System.getProperty("chat.protocol", "framed").equals("text");
+
+    private ChatClient chatClient;
     private Scanner scanner =  new Scanner(System.in);
 
-    // Client side stored ID and username.
+    // Client side stored username.
     public String username;
-    public int id;
 
-    private void go() {
-        setUpConnection();
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(new IncomingReader());
-        sendMessage();
+    private void go(ThreadFactory threads) {
+        if (setUpConnection(threads)) {
+            sendMessage();
+        }
     }
 
     // Establishing connection with the server.
-    private void setUpConnection() {
+    private boolean setUpConnection(ThreadFactory threads) {
         try {
-            InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", 5432);
-            SocketChannel socketChannel = SocketChannel.open(serverAddress);
-            reader = new BufferedReader(Channels.newReader(socketChannel, UTF_8));
-            writer = new PrintWriter(Channels.newWriter(socketChannel, UTF_8));
+            chatClient = ChatClient.connect("127.0.0.1", Server.port, framed, new ChatClient.Listener() {
+                public void received(ChatClient.Message message) {
+                    System.out.println(message.text());
+                }
+
+                public void closed(IOException cause) {
+                    if (cause != null) {
+                        cause.printStackTrace();
+                    }
+                }
+            }, threads);
             System.out.println("Connection established.");
+            return true;
         } catch (IOException ex) {
             ex.printStackTrace();
+            return false;
         }
     }
 
@@ -48,8 +52,7 @@ public class Client {
             String text = scanner.nextLine();
             if (username == null) {
                 username = text;
-                writer.println("@" + id + "@" + username);
-                writer.flush();
+                chatClient.enter(username);
             }
 
             // Sending commands.
@@ -57,66 +60,65 @@ public class Client {
 
                 // Exit the chatroom
                 if (text.equals("/exit")) {
-                    writer.println("/exit" + id);
-                    writer.flush();
+                    chatClient.command("exit", null);
                 }
 
                 // View the list of commands
                 else if (text.equals("/help")) {
-                    writer.println("/help" + id);
-                    writer.flush();
+                    chatClient.command("help", null);
                 }
 
                 // Search for specific keywords.
-                else if (text.startsWith("/search") && text.endsWith(")")) {
-                    writer.println(text + id);
-                    writer.flush();
+                else if (text.startsWith("/search(") && text.endsWith(")")) {
+                    chatClient.command("search", text.substring(8, text.length() - 1));
+                }
+
+                // Show earlier chat records.
+                else if (text.equals("/history")) {
+                    chatClient.command("history", null);
+                }
+
+                // Move to a room, or back to the lobby.
+                else if (text.startsWith("/join(") && text.endsWith(")")) {
+                    chatClient.command("join", text.substring(6, text.length() - 1));
+                }
+                else if (text.equals("/leave")) {
+                    chatClient.command("leave", null);
+                }
+
+                // List the rooms.
+                else if (text.equals("/rooms")) {
+                    chatClient.command("rooms", null);
+                }
+
+                // Show the server's stats, for an administrator on the server's machine.
+                else if (text.equals("/stats")) {
+                    chatClient.command("stats", null);
                 }
 
                 // Print the receivers of the last message the user sent.
                 else if (text.equals("/printReceiver")) {
-                    writer.println("/printReceiver" + id);
-                    writer.flush();
+                    chatClient.command("printReceiver", null);
                 }
                 else {
                     System.out.println("!!! Invalid command. Please try again.");
                 }
             }
 
-            // Sending messages.
+            // Sending messages; the time and the name are added by the server, or by ChatClient on the text protocol.
             else {
-                LocalDateTime now = LocalDateTime.now();
-                DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-                String formattedDate = now.format(dtf);
-                writer.println(formattedDate + " [" + id + "]" + username + " : " + text);
-                writer.flush();
+                chatClient.send(text);
             }
         }
     }
 
+    // Run with "virtual" to read incoming messages on a virtual thread.
     public static void main(String[] args) {
-        new Client().go();
-    }
-
-    // Read messages sent from the server.
-    public class IncomingReader implements Runnable {
-        public void run() {
-            String message;
-            try {
-                while ((message = reader.readLine()) != null) {
-                    if (message.charAt(0) == '#') {
-                        if (message.startsWith("#Your ID is : ")) {
-                            id = Integer.parseInt(message.substring(14));
-                        }
-                        System.out.println(message);
-                    }
-                    else {
-                        System.out.println(message);
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (args.length > 0 && args[0].equals("virtual")) {
+            new Client().go(Thread.ofVirtual().factory());
+        }
+        else {
+            new Client().go(Thread.ofPlatform().factory());
         }
     }
 }
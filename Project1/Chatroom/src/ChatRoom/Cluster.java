@@ -0,0 +1,392 @@
+package ChatRoom;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Cluster mode: server nodes linked in a full mesh over their peer ports, so that clients on any node share the rooms.
+// A node forwards the room traffic of its own clients to every peer, and nothing else, so no message is relayed twice.
+// Forwarded messages are numbered per node and the latest ones are kept in a ring: after a reconnect a link resumes
+// from the last number the peer applied, and peers drop numbers they have seen, so every message still in the ring
+// is delivered exactly once. Each node keeps the chat record of its own clients; /search asks every peer and merges.
+class Cluster {
+
+    static final int nodeId = Integer.getInteger("chat.cluster.node", 0);
+
+    // The other nodes as "node@host:port" separated by commas, each with its peer port. Empty for a single server.
+    static final String peers = System.getProperty("chat.cluster.peers", "");
+
+    // The address the peer port is bound to; nodes on other hosts need one of this host's outside addresses.
+    static final String bindAddress = System.getProperty("chat.cluster.bindAddress", "127.0.0.1");
+
+    // Shared by every node of a cluster, which must have one: a peer's hello carries an HMAC of its fields keyed
+    // with it, and a connection whose hello does not is dropped before it can forward or search anything.
+    private static final String secret = System.getProperty("chat.cluster.secret", "");
+
+    // Every node hands out user IDs from its own range of this size, so IDs are unique across the cluster.
+    static final int idsPerNode = Integer.getInteger("chat.cluster.idsPerNode", 10000);
+
+    static final int retainMessages = Integer.getInteger("chat.cluster.retainMessages", 10000);
+    static final long searchTimeout = Long.getLong("chat.cluster.searchTimeoutMillis", 2000);
+    static final long reconnectDelay = Long.getLong("chat.cluster.reconnectMillis", 1000);
+
+    // Frame types used between nodes, after the client ones in Frame.
+    static final byte HELLO = 16;           // time: incarnation of the sender; payload: incarnation and last number it has applied from the peer, and the HMAC
+    static final byte FORWARD_CHAT = 17;    // payload: number, room and chat line, one per line
+    static final byte FORWARD_NOTICE = 18;  // payload: number, room and notice, one per line
+    static final byte SEARCH = 19;          // sender: request ID; payload: room and pattern, one per line
+    static final byte RESULT = 20;          // sender: request ID; payload: one matching line
+    static final byte DONE = 21;            // sender: request ID
+
+    // The server this node serves its peers from, set once it is constructed.
+    private Server server;
+    private final Map<Integer, Link> links = new HashMap<>();
+
+    // Read once Server's own settings are, which its static initialization would be too early for.
+    private final int peerPort = Integer.getInteger("chat.cluster.port", Server.port + 1000);
+
+    // Tells a restarted node from the one before it, whose numbers started over.
+    private final long incarnation = System.currentTimeMillis();
+
+    // The latest forwarded messages by number, and the last number handed out.
+    private final ByteBuffer[] ring = new ByteBuffer[retainMessages];
+    private long head = 0;
+    private final ReentrantLock ringLock = new ReentrantLock();
+    private final Condition published = ringLock.newCondition();
+
+    // Searches waiting for the answers of peers.
+    private final ConcurrentHashMap<Integer, PendingSearch> searches = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSearch = new AtomicInteger();
+
+    public Cluster() {
+        for (String peer : peers.split(",")) {
+            if (peer.isBlank()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            int node = Integer.parseInt(peer.substring(0, at).trim());
+            InetSocketAddress address = new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1).trim()));
+            links.put(node, new Link(node, address));
+        }
+    }
+
+    boolean enabled() {
+        return !links.isEmpty();
+    }
+
+    // Listen for lower nodes and connect to higher ones, so that every pair of nodes has one link.
+    void start(Server server) throws IOException {
+        if (!enabled()) {
+            return;
+        }
+        if (secret.isEmpty()) {
+            throw new IOException("A cluster needs chat.cluster.secret, the same on every node.");
+        }
+        this.server = server;
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindAddress, peerPort));
+        daemon("peer-acceptor", () -> accept(serverChannel));
+        for (Link link : links.values()) {
+            if (link.node > nodeId) {
+                daemon("peer-connector-" + link.node, link::connect);
+            }
+        }
+        Log.info(Log.Category.CLUSTER, "Node " + nodeId + " listening for peers on " + bindAddress + ":" + peerPort + ".");
+    }
+
+    // Whether a hello was sent by a node that has the secret.
+    private static boolean authentic(Frame hello) {
+        String payload = hello.payload();
+        int space = payload.lastIndexOf(' ');
+        return space > 0 && MessageDigest.isEqual(mac(hello.sender(), hello.time(), payload.substring(0, space)).getBytes(UTF_8),
+                payload.substring(space + 1).getBytes(UTF_8));
+    }
+
+    private static String mac(int node, long incarnation, String known) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(UTF_8), "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal((node + " " + incarnation + " " + known).getBytes(UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is missing", e);
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                daemon("peer-link", () -> {
+                    try (channel) {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                        Frame hello = Frame.read(in);
+                        Link link = hello == null || hello.type() != HELLO ? null : links.get(hello.sender());
+                        if (link != null && !authentic(hello)) {
+                            Log.warn(Log.Category.CLUSTER, "Dropping a peer from " + channel.getRemoteAddress() + " claiming to be node "
+                                    + hello.sender() + " without the cluster's secret.");
+                        }
+                        else if (link != null) {
+                            link.sendHello(channel);
+                            link.serve(channel, in, hello);
+                        }
+                    } catch (IOException e) {
+                        // The peer went away; it connects again.
+                    }
+                });
+            } catch (IOException e) {
+                Log.error(Log.Category.CLUSTER, "Accepting a peer failed.", e);
+            }
+        }
+    }
+
+    // Forward a message of a room to every peer.
+    void publish(byte type, String room, int sender, long time, String line) {
+        if (!enabled()) {
+            return;
+        }
+        byte forwardType = type == Frame.CHAT ? FORWARD_CHAT : FORWARD_NOTICE;
+        ringLock.lock();
+        try {
+            long number = ++head;
+            ring[(int) (number % ring.length)] = Frame.encode(forwardType, sender, time, number + "\n" + room + "\n" + line);
+            published.signalAll();
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    // The lines of a room matching a pattern on every connected peer, each peer given searchTimeout to answer.
+    CompletableFuture<List<String>> search(String room, String pattern) {
+        List<CompletableFuture<List<String>>> answers = new ArrayList<>();
+        for (Link link : links.values()) {
+            SocketChannel channel = link.channel;
+            if (channel == null) {
+                continue;
+            }
+            int id = nextSearch.incrementAndGet();
+            PendingSearch pending = new PendingSearch();
+            searches.put(id, pending);
+            try {
+                link.send(channel, Frame.encode(SEARCH, id, System.currentTimeMillis(), room + "\n" + pattern));
+            } catch (IOException e) {
+                searches.remove(id);
+                continue;
+            }
+            answers.add(pending.answer.completeOnTimeout(List.of(), searchTimeout, TimeUnit.MILLISECONDS)
+                    .whenComplete((lines, e) -> searches.remove(id)));
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<String> lines = new ArrayList<>();
+            for (CompletableFuture<List<String>> answer : answers) {
+                lines.addAll(answer.join());
+            }
+            return lines;
+        });
+    }
+
+    // A search sent to one peer; its lines are only added by the reader of that link.
+    private static class PendingSearch {
+        final List<String> lines = new ArrayList<>();
+        final CompletableFuture<List<String>> answer = new CompletableFuture<>();
+    }
+
+    // The link to one peer, which outlives the connections made for it.
+    private class Link {
+        final int node;
+        final InetSocketAddress address;
+        volatile SocketChannel channel;
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        // The incarnation of the peer and the last number applied from it.
+        private volatile long peerIncarnation = 0;
+        private volatile long lastReceived = 0;
+
+        Link(int node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        // Keep a connection to a higher node open.
+        void connect() {
+            while (true) {
+                try (SocketChannel connected = SocketChannel.open(address)) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connected)));
+                    sendHello(connected);
+                    Frame hello = Frame.read(in);
+                    if (hello != null && hello.type() == HELLO && hello.sender() == node && authentic(hello)) {
+                        serve(connected, in, hello);
+                    }
+                } catch (IOException e) {
+                    // Not up yet, or the link dropped.
+                }
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void sendHello(SocketChannel to) throws IOException {
+            String known = peerIncarnation + " " + lastReceived;
+            send(to, Frame.encode(HELLO, nodeId, incarnation, known + " " + mac(nodeId, incarnation, known)));
+        }
+
+        // Both sides have said hello: write from where the peer stopped, and read until the connection drops.
+        void serve(SocketChannel connected, DataInputStream in, Frame hello) throws IOException {
+            String[] known = hello.payload().split(" ");
+            long peerKnowsIncarnation = Long.parseLong(known[0]);
+            long peerApplied = Long.parseLong(known[1]);
+            long from;
+            ringLock.lock();
+            try {
+                if (peerKnowsIncarnation == incarnation) {
+                    from = Math.min(peerApplied, head);
+                }
+                else if (peerKnowsIncarnation == 0) {
+                    // A peer that just started does not want what was said before it was there.
+                    from = head;
+                }
+                else {
+                    // This node restarted since the peer last heard from it.
+                    from = 0;
+                }
+            } finally {
+                ringLock.unlock();
+            }
+            if (hello.time() != peerIncarnation) {
+                peerIncarnation = hello.time();
+                lastReceived = 0;
+            }
+
+            channel = connected;
+            Log.info(Log.Category.CLUSTER, "Linked with node " + node + ".");
+            daemon("peer-writer-" + node, () -> write(connected, from));
+            try {
+                Frame frame;
+                while ((frame = Frame.read(in)) != null) {
+                    receive(connected, frame);
+                }
+            } finally {
+                channel = null;
+                connected.close();
+                ringLock.lock();
+                try {
+                    published.signalAll();
+                } finally {
+                    ringLock.unlock();
+                }
+                Log.warn(Log.Category.CLUSTER, "Lost the link with node " + node + ".");
+            }
+        }
+
+        // Write the forwarded messages after a number to the peer, and every later one, until the connection drops.
+        private void write(SocketChannel connected, long from) {
+            long cursor = from;
+            ByteBuffer[] batch = new ByteBuffer[64];
+            try {
+                while (connected.isOpen()) {
+                    int count = 0;
+                    ringLock.lock();
+                    try {
+                        while (cursor >= head && connected.isOpen()) {
+                            published.await();
+                        }
+                        long oldest = Math.max(1, head - ring.length + 1);
+                        if (cursor + 1 < oldest) {
+                            Log.warn(Log.Category.CLUSTER, "Node " + node + " missed " + (oldest - cursor - 1) + " messages.");
+                            cursor = oldest - 1;
+                        }
+                        while (cursor < head && count < batch.length) {
+                            batch[count++] = ring[(int) (++cursor % ring.length)].duplicate();
+                        }
+                    } finally {
+                        ringLock.unlock();
+                    }
+                    send(connected, Arrays.copyOf(batch, count));
+                }
+            } catch (IOException | InterruptedException e) {
+                // The reader closes the connection.
+            }
+        }
+
+        void send(SocketChannel to, ByteBuffer... frames) throws IOException {
+            writeLock.lock();
+            try {
+                long remaining = 0;
+                for (ByteBuffer frame : frames) {
+                    remaining += frame.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= to.write(frames);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void receive(SocketChannel connected, Frame frame) throws IOException {
+            switch (frame.type()) {
+                case FORWARD_CHAT, FORWARD_NOTICE -> {
+                    String payload = frame.payload();
+                    int first = payload.indexOf('\n');
+                    int second = payload.indexOf('\n', first + 1);
+                    long number = Long.parseLong(payload, 0, first, 10);
+                    // Resent after a reconnect, but already delivered.
+                    if (number <= lastReceived) {
+                        return;
+                    }
+                    lastReceived = number;
+                    byte type = frame.type() == FORWARD_CHAT ? Frame.CHAT : Frame.NOTICE;
+                    server.deliver(payload.substring(first + 1, second), type, frame.sender(), frame.time(), payload.substring(second + 1));
+                }
+                case SEARCH -> {
+                    String payload = frame.payload();
+                    int newline = payload.indexOf('\n');
+                    // Answer once the search is done, this thread goes on reading the peer's frames meanwhile.
+                    server.searchLocal(payload.substring(0, newline), payload.substring(newline + 1)).whenComplete((lines, e) -> {
+                        try {
+                            for (String line : lines == null ? List.<String>of() : lines) {
+                                send(connected, Frame.encode(RESULT, frame.sender(), 0, line));
+                            }
+                            send(connected, Frame.encode(DONE, frame.sender(), 0, ""));
+                        } catch (IOException ignored) {
+                            // The link dropped, the searching node stops waiting after its timeout.
+                        }
+                    });
+                }
+                case RESULT -> {
+                    PendingSearch pending = searches.get(frame.sender());
+                    if (pending != null) {
+                        pending.lines.add(frame.payload());
+                    }
+                }
+                case DONE -> {
+                    PendingSearch pending = searches.get(frame.sender());
+                    if (pending != null) {
+                        pending.answer.complete(pending.lines);
+                    }
+                }
+                default -> throw new IOException("Unexpected peer frame type " + frame.type());
+            }
+        }
+    }
+}
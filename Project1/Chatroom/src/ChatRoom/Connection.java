@@ -0,0 +1,430 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// The server side of one client connection.
+// Encoded messages go into a bounded outbound queue and a single writer drains it, handing everything
+// pending to one gathering write, so a slow client never blocks the thread that is sending to it.
+// Messages are encoded as text lines or as frames (see Frame), depending on what the client negotiated.
+// Bulk output, like history replay and search results, goes through a Bulk, which compresses it for the
+// framed clients that asked for compression.
+abstract class Connection {
+
+    // What to do with a client whose queue is past the high-water mark.
+    enum OverflowPolicy { DROP, DISCONNECT }
+
+    // High-water marks of the outbound queue, in messages and in bytes.
+    static final int highWaterMessages = Integer.getInteger("chat.outbound.highWaterMessages", 1024);
+    static final int highWaterBytes = Integer.getInteger("chat.outbound.highWaterBytes", 1024 * 1024);
+    static final OverflowPolicy overflowPolicy =
+            OverflowPolicy.valueOf(System.getProperty("chat.outbound.overflow", "DISCONNECT"));
+
+    // A client not heard from for the heartbeat interval is pinged if it answers pings, and one not heard from
+    // for the idle timeout, answers to pings included, is taken for gone; so is one whose output has not moved for
+    // the write timeout, and one that has not given its name within the greeting timeout. Zero turns each of them off.
+    static final long heartbeatInterval = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat.intervalSeconds", 30));
+    static final long idleTimeout = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat.idleTimeoutSeconds", 90));
+    static final long greetingTimeout = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat.greetingTimeoutSeconds", 30));
+    static final long writeTimeout = TimeUnit.SECONDS.toNanos(Long.getLong("chat.outbound.writeTimeoutSeconds", 30));
+
+    // Whether clients that ask for compression get it, how hard their output is compressed, and how many
+    // bytes of frames at most go into one DEFLATED frame.
+    static final boolean compressionEnabled = Boolean.parseBoolean(System.getProperty("chat.compression.enabled", "true"));
+    static final int compressionLevel = Integer.getInteger("chat.compression.level", Deflater.DEFAULT_COMPRESSION);
+    static final int bulkBytes = Integer.getInteger("chat.compression.bulkBytes", 32 * 1024);
+
+    // Upper bounds of one gathering write.
+    static final int maxBatchBuffers = 64;
+    static final int maxBatchBytes = 64 * 1024;
+
+    final SocketChannel channel;
+
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+
+    // The buffers of the gathering write in progress, only touched by the writer.
+    private final ByteBuffer[] batch = new ByteBuffer[maxBatchBuffers];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+
+    // When the client was last heard from and last pinged, and when the writer last got bytes out;
+    // writing is set while a gathering write is unfinished.
+    private volatile long lastHeard = System.nanoTime();
+    private volatile long lastPing = 0;
+    final long opened = System.nanoTime();
+    private volatile long lastProgress = System.nanoTime();
+    private volatile boolean writing = false;
+
+    // Set once the client asked to leave: the queue is drained, then the channel is closed.
+    protected volatile boolean closing = false;
+
+    // Messages dropped because this client fell behind.
+    final AtomicLong dropped = new AtomicLong();
+
+    // Called once when the channel is closed, however that happens.
+    volatile Runnable onClose;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // The ID of the user on this connection, set when it is registered.
+    volatile int userId;
+
+    // Limits on what the client sends, and until when not to read from it after it went past them.
+    // Both are only used by the thread reading the connection.
+    final RateLimiter limiter = new RateLimiter();
+    private long readPausedUntil = 0;
+
+    // Whether the client chose a protocol with its first bytes, and whether it chose frames.
+    // Until then, senders hold the negotiation lock, so nothing encoded as text is queued after the switch.
+    protected volatile boolean negotiated = false;
+    protected volatile boolean framed = false;
+    private final ReentrantLock negotiation = new ReentrantLock();
+
+    // Whether the client answers pings: a framed client does, a text client once it asked for them with /heartbeat.
+    volatile boolean answersPings = false;
+
+    // Whether bulk output is compressed.
+    private volatile boolean compressed = false;
+
+    // Deflaters shared by every connection. Each is reset after a DEFLATED frame, so every frame is a deflate
+    // stream of its own and a connection holds no native compression state between bulk frames.
+    private static final BlockingQueue<Deflater> deflaters =
+            new ArrayBlockingQueue<>(Integer.getInteger("chat.compression.pooledDeflaters", Runtime.getRuntime().availableProcessors()));
+
+    protected Connection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    // A message encoded once so that the same bytes can be queued for many clients.
+    // The buffers are direct, so writing them to a socket does not copy them again per recipient;
+    // the framed encoding is only made once a framed client needs it.
+    static final class Shared {
+        private final byte type;
+        private final int sender;
+        private final long time;
+        private final long sequence;
+        private final String line;
+        private final ByteBuffer text;
+        private volatile ByteBuffer frame;
+
+        private Shared(byte type, int sender, long time, long sequence, String line) {
+            this.type = type;
+            this.sender = sender;
+            this.time = time;
+            this.sequence = sequence;
+            this.line = line;
+            text = direct(UTF_8.encode(line + "\n"));
+        }
+
+        ByteBuffer frame() {
+            ByteBuffer encoded = frame;
+            if (encoded == null) {
+                encoded = direct(Frame.encode(type, sender, time, sequence, line));
+                frame = encoded;
+            }
+            return encoded;
+        }
+
+        private static ByteBuffer direct(ByteBuffer encoded) {
+            ByteBuffer shared = ByteBuffer.allocateDirect(encoded.remaining());
+            shared.put(encoded).flip();
+            return shared.asReadOnlyBuffer();
+        }
+    }
+
+    static Shared encodeShared(String line) {
+        return encodeShared(Frame.NOTICE, 0, System.currentTimeMillis(), 0, line);
+    }
+
+    static Shared encodeShared(byte type, int sender, long time, long sequence, String line) {
+        return new Shared(type, sender, time, sequence, line);
+    }
+
+    // Queue a notice for this client only.
+    boolean send(String line) {
+        return send(Frame.NOTICE, 0, System.currentTimeMillis(), line);
+    }
+
+    boolean send(byte type, int sender, long time, String line) {
+        return send(type, sender, time, 0, line);
+    }
+
+    // Queue a message of some frame type for this client only.
+    boolean send(byte type, int sender, long time, long sequence, String line) {
+        if (negotiated) {
+            return enqueue(framed ? Frame.encode(type, sender, time, sequence, line) : UTF_8.encode(line + "\n"));
+        }
+        negotiation.lock();
+        try {
+            return enqueue(framed ? Frame.encode(type, sender, time, sequence, line) : UTF_8.encode(line + "\n"));
+        } finally {
+            negotiation.unlock();
+        }
+    }
+
+    // Queue a message encoded with encodeShared(); only a duplicate of a buffer is kept.
+    boolean send(Shared shared) {
+        if (negotiated) {
+            return enqueue((framed ? shared.frame() : shared.text).duplicate());
+        }
+        negotiation.lock();
+        try {
+            return enqueue((framed ? shared.frame() : shared.text).duplicate());
+        } finally {
+            negotiation.unlock();
+        }
+    }
+
+    void negotiate(boolean useFrames) {
+        negotiate(useFrames, false);
+    }
+
+    // Settle the protocol once the first bytes of the client are in. A framed client is acknowledged
+    // with a last text line, which also tells whether its bulk output will be compressed, and everything
+    // queued after it is a frame.
+    void negotiate(boolean useFrames, boolean askedForCompression) {
+        negotiation.lock();
+        try {
+            if (useFrames) {
+                compressed = askedForCompression && compressionEnabled;
+                enqueue(UTF_8.encode((compressed ? Frame.compressedAcknowledgement : Frame.acknowledgement) + "\n"));
+                framed = true;
+                answersPings = true;
+            }
+            negotiated = true;
+        } finally {
+            negotiation.unlock();
+        }
+    }
+
+    Bulk bulk() {
+        return new Bulk();
+    }
+
+    // A run of messages for this client that belong together, like a history replay. Sent to a client
+    // with compression, they are gathered into DEFLATED frames of up to bulkBytes of frames each;
+    // otherwise each one is queued as it is added. Used by one thread at a time; flush() at the end.
+    final class Bulk {
+        private byte[] frames;
+        private int size = 0;
+
+        private Bulk() {
+        }
+
+        // Returns false once the client is gone or its messages are being dropped.
+        boolean add(byte type, int sender, long time, long sequence, String line) {
+            if (!compressed) {
+                return send(type, sender, time, sequence, line);
+            }
+            ByteBuffer frame = Frame.encode(type, sender, time, sequence, line);
+            if (frame.remaining() > bulkBytes) {
+                return flush() && enqueue(frame);
+            }
+            if (size + frame.remaining() > bulkBytes && !flush()) {
+                return false;
+            }
+            if (frames == null) {
+                frames = new byte[bulkBytes];
+            }
+            frame.get(frames, size, frame.remaining());
+            size += frame.limit();
+            return !closing && channel.isOpen();
+        }
+
+        // Queue what has been gathered so far.
+        boolean flush() {
+            if (size == 0) {
+                return !closing && channel.isOpen();
+            }
+            int length = size;
+            size = 0;
+            if (closing) {
+                return false;
+            }
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(compressionLevel, true);
+            }
+            ByteBuffer deflated;
+            try {
+                deflated = Frame.deflate(deflater, frames, length);
+            } finally {
+                deflater.reset();
+                if (!deflaters.offer(deflater)) {
+                    deflater.end();
+                }
+            }
+            Metrics.bulkBytes.add(length);
+            Metrics.bulkBytesDeflated.add(deflated.remaining());
+            return enqueue(deflated);
+        }
+    }
+
+    // Queue an encoded line without blocking the caller.
+    // Returns false if the line was dropped or the client was disconnected for falling behind.
+    private boolean enqueue(ByteBuffer message) {
+        if (closing || !channel.isOpen()) {
+            return false;
+        }
+        int size = message.remaining();
+        int messages = queuedMessages.incrementAndGet();
+        int bytes = queuedBytes.addAndGet(size);
+        // A message larger than the byte budget on its own still goes out to a client that is keeping up.
+        if (messages > highWaterMessages || bytes > highWaterBytes && messages > 1) {
+            queuedMessages.decrementAndGet();
+            queuedBytes.addAndGet(-size);
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+                Metrics.dropped.increment();
+            }
+            else {
+                Log.warn(Log.Category.CONNECTION, "Disconnecting a slow client.");
+                Metrics.slowDisconnects.increment();
+                abort();
+            }
+            return false;
+        }
+        if (messages == 1) {
+            // The writer had nothing to do until now, so it is not behind.
+            lastProgress = System.nanoTime();
+        }
+        queue.add(message);
+        Metrics.messagesOut.increment();
+        Metrics.bytesOut.add(size);
+        scheduleFlush();
+        return true;
+    }
+
+    // Stop reading from the client for a while, so that it cannot send faster than its limits.
+    void pauseReading(long nanos) {
+        readPausedUntil = System.nanoTime() + nanos;
+    }
+
+    long readPausedUntil() {
+        return readPausedUntil;
+    }
+
+    // Nanoseconds left before the client may be read from again, or zero or less if it may be now.
+    long readPause() {
+        return readPausedUntil - System.nanoTime();
+    }
+
+    // Something came from the client, so it is still there.
+    void heard() {
+        lastHeard = System.nanoTime();
+    }
+
+    // Nanoseconds since the client was last heard from.
+    long silentFor(long now) {
+        return now - lastHeard;
+    }
+
+    // Whether output has been waiting for longer than the write timeout without a byte of it being written,
+    // as happens when the client stopped reading or vanished with the socket buffers full.
+    boolean writeStalled(long now) {
+        return writeTimeout > 0 && (writing || queuedMessages.get() > 0) && now - lastProgress > writeTimeout;
+    }
+
+    // Ping the client unless it was pinged within the heartbeat interval.
+    void ping(long now) {
+        if (negotiated && now - lastPing >= heartbeatInterval) {
+            lastPing = now;
+            send(Frame.PING, 0, System.currentTimeMillis(), "#Ping");
+        }
+    }
+
+    // Close the connection once everything queued so far has been written.
+    void close() {
+        closing = true;
+        scheduleFlush();
+    }
+
+    // Whether the channel has been closed; it is before onClose runs.
+    boolean closed() {
+        return closed.get();
+    }
+
+    // Number of messages waiting to be written.
+    int queueDepth() {
+        return queuedMessages.get();
+    }
+
+    // Write as much pending output as the channel accepts, several queued messages per gathering write.
+    // Returns true once everything queued has been written, false if a non-blocking channel is full.
+    protected boolean writePending() throws IOException {
+        while (true) {
+            if (batchStart == batchEnd && !fillBatch()) {
+                writing = false;
+                return true;
+            }
+            writing = true;
+            if (channel.write(batch, batchStart, batchEnd - batchStart) > 0) {
+                lastProgress = System.nanoTime();
+            }
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                batch[batchStart++] = null;
+            }
+            if (batchStart < batchEnd) {
+                return false;
+            }
+        }
+    }
+
+    // Move queued messages into the batch, up to maxBatchBuffers or maxBatchBytes.
+    private boolean fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        int bytes = 0;
+        ByteBuffer message;
+        while (batchEnd < maxBatchBuffers && bytes < maxBatchBytes && (message = queue.poll()) != null) {
+            batch[batchEnd++] = message;
+            bytes += message.remaining();
+        }
+        queuedMessages.addAndGet(-batchEnd);
+        queuedBytes.addAndGet(-bytes);
+        return batchEnd > 0;
+    }
+
+    protected boolean hasPending() {
+        return !queue.isEmpty();
+    }
+
+    // Close the channel right away, discarding whatever is still queued.
+    void abort() {
+        closing = true;
+        queue.clear();
+        queuedMessages.set(0);
+        queuedBytes.set(0);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error(Log.Category.CONNECTION, "Closing a connection failed.", e);
+        }
+        // The reader, the writer and the reaper may all get here; only the first one runs the callback.
+        Runnable callback = onClose;
+        if (closed.compareAndSet(false, true) && callback != null) {
+            runOnClose(callback);
+        }
+    }
+
+    // Run the onClose callback, which may wait for the room the user was in.
+    protected void runOnClose(Runnable callback) {
+        callback.run();
+    }
+
+    // Make sure the writer of this connection will run soon.
+    protected abstract void scheduleFlush();
+}
@@ -0,0 +1,382 @@
+package ChatRoom;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Selector-driven server mode: a few event loop threads serve every client over non-blocking channels.
+// The loops only read, write and do what never blocks; what a client sent is handled on a virtual thread
+// of its own, one line or frame at a time and in order, as it may wait for the disk or for a room.
+class EventLoop implements Runnable {
+
+    // Lines longer than this, the most a frame may hold, are treated as a broken client; the blocking modes do the same.
+    static final int maxLineLength = Frame.maxLength;
+
+    // A client is not read from while this many of its lines or frames are waiting to be handled.
+    static final int maxUnhandled = Integer.getInteger("chat.eventLoop.maxUnhandled", 16);
+
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final Loop[] loops;
+    private int nextLoop = 0;
+
+    public EventLoop(Server server, int port, int loopCount) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        loops = new Loop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop();
+            Thread thread = new Thread(loops[i], "event-loop-" + i);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    // Accept clients and hand them to the event loops in turn.
+    public void run() {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel clientSocket = serverChannel.accept();
+                clientSocket.configureBlocking(false);
+                Loop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+
+                // The greeting is queued before the loop can read the preface, so that it goes out as text.
+                NioConnection connection = new NioConnection(clientSocket, loop);
+                server.register(connection);
+                loop.add(connection);
+                Log.info(Log.Category.CONNECTION, "Client connected.");
+                server.printFootprint();
+            }
+        } catch (IOException e) {
+            Log.error(Log.Category.SERVER, "Accepting clients failed.", e);
+        }
+    }
+
+    // One selector and the thread running it.
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> newConnections = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> flushRequests = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> resumeRequests = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        // Connections not read from until they are back within their rate limits, earliest to resume first.
+        // Only the loop thread touches it.
+        private final PriorityQueue<NioConnection> paused = new PriorityQueue<>(Comparator.comparingLong(NioConnection::readPausedUntil));
+
+        public Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Register a connection with this loop from any thread.
+        public void add(NioConnection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        // Ask the loop to write out the pending output of a connection.
+        public void requestFlush(NioConnection connection) {
+            if (Thread.currentThread() == thread) {
+                connection.flushPending();
+            }
+            else {
+                flushRequests.add(connection);
+                selector.wakeup();
+            }
+        }
+
+        // Ask the loop to read again from a connection that caught up with what it was sent.
+        void requestResume(NioConnection connection) {
+            resumeRequests.add(connection);
+            selector.wakeup();
+        }
+
+        // Stop selecting a connection for reading until its pause is over.
+        void pause(NioConnection connection) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            paused.add(connection);
+        }
+
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    if (paused.isEmpty()) {
+                        selector.select();
+                    }
+                    else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(paused.peek().readPause())));
+                    }
+                } catch (IOException e) {
+                    Log.error(Log.Category.SERVER, "An event loop failed.", e);
+                    return;
+                }
+
+                NioConnection connection;
+                while ((connection = newConnections.poll()) != null) {
+                    try {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (ClosedChannelException e) {
+                        continue;
+                    }
+                    connection.flushPending();
+                }
+                while ((connection = flushRequests.poll()) != null) {
+                    connection.flushPending();
+                }
+                while ((connection = resumeRequests.poll()) != null) {
+                    connection.unstall();
+                }
+                while (!paused.isEmpty() && paused.peek().readPause() <= 0) {
+                    paused.poll().resume();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection selected = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        selected.flushPending();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        selected.read();
+                    }
+                }
+            }
+        }
+    }
+
+    // A non-blocking client connection with its own read buffer, framing lines or frames
+    // depending on its first bytes. The event loop is the writer that drains its outbound queue.
+    private class NioConnection extends Connection {
+        final Loop loop;
+        SelectionKey key;
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+
+        // What the client sent and is yet to be handled, and how much of it there is; while there is any,
+        // one virtual thread handles it. Stalled is set, only by the loop, while the client is not read from
+        // because too much is waiting.
+        private final Queue<Runnable> unhandled = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger unhandledCount = new AtomicInteger();
+        private volatile boolean stalled = false;
+
+        public NioConnection(SocketChannel channel, Loop loop) {
+            super(channel);
+            this.loop = loop;
+        }
+
+        protected void scheduleFlush() {
+            loop.requestFlush(this);
+        }
+
+        // Read what is available and pass every complete line or frame to the server,
+        // unless the client has to slow down; what is left waits in the read buffer until it is resumed.
+        void read() {
+            try {
+                int count = channel.read(readBuffer);
+                if (count < 0) {
+                    abort();
+                    return;
+                }
+                readBuffer.flip();
+                if (!negotiated && !readPreface()) {
+                    return;
+                }
+                if (framed) {
+                    readFrames();
+                }
+                else {
+                    readLines();
+                }
+                if (readPause() > 0 && key.isValid()) {
+                    loop.pause(this);
+                }
+                else if (unhandledCount.get() >= maxUnhandled && key.isValid()) {
+                    stall();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.debug(Log.Category.CONNECTION, "Dropping a client: ", e);
+                abort();
+            }
+        }
+
+        // Whether the loop may take another line or frame from the read buffer.
+        private boolean mayRead() {
+            return readPause() <= 0 && unhandledCount.get() < maxUnhandled;
+        }
+
+        // Handle something the client sent after everything it sent before, on the virtual thread of the connection.
+        private void handle(Runnable task) {
+            unhandled.add(task);
+            if (unhandledCount.getAndIncrement() == 0) {
+                Thread.ofVirtual().name("handler-" + userId).start(this::handleAll);
+            }
+        }
+
+        private void handleAll() {
+            do {
+                unhandled.poll().run();
+            } while (unhandledCount.decrementAndGet() > 0);
+            if (stalled) {
+                loop.requestResume(this);
+            }
+        }
+
+        // Stop reading until what is waiting has been handled. The count is looked at again after stalled is set,
+        // in case the handler finished in between without seeing it.
+        private void stall() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            stalled = true;
+            if (unhandledCount.get() == 0) {
+                unstall();
+            }
+        }
+
+        void unstall() {
+            if (stalled) {
+                stalled = false;
+                resume();
+            }
+        }
+
+        private void handleLine(String message) {
+            if (server.receiveMessage(this, message)) {
+                handle(() -> {
+                    try {
+                        server.handleReceivedMessage(this, message);
+                    } catch (IOException | RuntimeException e) {
+                        Log.debug(Log.Category.CONNECTION, "Dropping a client: ", e);
+                        abort();
+                    }
+                });
+            }
+        }
+
+        private void handleFrame(Frame frame) {
+            if (server.receiveFrame(this, frame)) {
+                handle(() -> {
+                    try {
+                        server.handleReceivedFrame(this, frame);
+                    } catch (IOException | RuntimeException e) {
+                        Log.debug(Log.Category.CONNECTION, "Dropping a client: ", e);
+                        abort();
+                    }
+                });
+            }
+        }
+
+        // Settle the protocol from the first bytes; returns false while the preface is incomplete
+        // or if the client asked for a version this server does not speak.
+        private boolean readPreface() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.compact();
+                return false;
+            }
+            if (readBuffer.get(readBuffer.position()) != Frame.preface[0]) {
+                negotiate(false);
+                return true;
+            }
+            if (readBuffer.remaining() < Frame.preface.length) {
+                readBuffer.compact();
+                return false;
+            }
+            byte[] preface = new byte[Frame.preface.length];
+            readBuffer.get(preface);
+            int version = Frame.checkPreface(preface);
+            if (version != Frame.version) {
+                negotiate(false);
+                send("#Unsupported protocol version " + version + ".");
+                close();
+                readBuffer.clear();
+                return false;
+            }
+            negotiate(true, Frame.asksForCompression(preface));
+            return true;
+        }
+
+        private void readFrames() throws IOException {
+            Frame frame;
+            while (mayRead() && (frame = Frame.decode(readBuffer)) != null) {
+                handleFrame(frame);
+            }
+            // Make room for a frame that is larger than the buffer; decode() has checked its length.
+            if (readBuffer.remaining() >= 4 && 4 + readBuffer.getInt(readBuffer.position()) > readBuffer.capacity()) {
+                readBuffer = ByteBuffer.allocate(4 + Frame.maxLength).put(readBuffer);
+            }
+            else {
+                readBuffer.compact();
+            }
+        }
+
+        private void readLines() throws IOException {
+            while (readBuffer.hasRemaining() && mayRead()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String message = new String(line, 0, length, UTF_8);
+                    lineLength = 0;
+                    handleLine(message);
+                }
+                else {
+                    if (lineLength == maxLineLength) {
+                        throw new IOException("Line too long");
+                    }
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, maxLineLength));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            readBuffer.compact();
+        }
+
+        // Read again once the pause is over, or the stall, starting with what was left in the read buffer.
+        void resume() {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                read();
+            }
+        }
+
+        // Write as much pending output as the socket accepts, then wait for OP_WRITE if anything is left.
+        void flushPending() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            try {
+                if (!writePending()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing) {
+                    abort();
+                }
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        void abort() {
+            if (key != null) {
+                key.cancel();
+            }
+            super.abort();
+        }
+
+        // The user leaves its room after what it sent before has been handled, and off the loop.
+        protected void runOnClose(Runnable callback) {
+            handle(callback);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package ChatRoom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// One frame of the binary protocol: a length prefix, then the type, the sender ID, the server timestamp,
+// the sequence number and a UTF-8 payload. The length counts every byte after itself.
+// A client asks for frames by sending the preface as its first bytes; the server answers with the
+// acknowledgement as its last text line, and both sides use frames from then on.
+// Clients that start with anything else keep using the line-based text protocol.
+// A client sending the compressed preface instead may also get DEFLATED frames, if the acknowledgement says so:
+// each holds whole frames compressed as a deflate stream of its own, sync-flushed, which inflates without the
+// frames before it.
+record Frame(byte type, int sender, long time, long sequence, String payload) {
+
+    // Frame types. NAME and COMMAND are sent by clients, NOTICE and RECORD by the server, CHAT, PING and PONG by both;
+    // from the server, the payload of a CHAT frame is the chat line as stored in the chat record.
+    // CHAT and history RECORD frames from the server carry the line's sequence number, its message number in
+    // the room's chat record; every other frame carries 0.
+    static final byte NAME = 1;       // payload: the user name
+    static final byte CHAT = 2;       // payload: the text of the message
+    static final byte COMMAND = 3;    // payload: the command name, then a space and its argument if it has one
+    static final byte NOTICE = 4;     // greetings, replies to commands, users entering and leaving
+    static final byte RECORD = 5;     // a line of the chat record, for /search and history replay
+    static final byte PING = 6;       // a heartbeat, to be answered with a PONG
+    static final byte PONG = 7;       // the answer to a PING
+    static final byte DEFLATED = 8;   // payload: frames, compressed; from the server to a client that asked for it
+
+    static final int version = 2;
+    static final byte[] preface = { 0, 'C', 'F', version };
+    static final byte[] compressedPreface = { 0, 'C', 'Z', version };
+    static final String acknowledgement = "#Protocol: framed " + version;
+    static final String compressedAcknowledgement = acknowledgement + " deflate";
+
+    // Bytes of the type, sender, time and sequence fields.
+    static final int headerBytes = 21;
+
+    // Frames longer than this are treated as a broken client.
+    static final int maxLength = 64 * 1024;
+
+    ByteBuffer encode() {
+        return encode(type, sender, time, sequence, payload);
+    }
+
+    static ByteBuffer encode(byte type, int sender, long time, String payload) {
+        return encode(type, sender, time, 0, payload);
+    }
+
+    // A heap buffer holding the whole frame, ready to be written.
+    static ByteBuffer encode(byte type, int sender, long time, long sequence, String payload) {
+        byte[] bytes = payload.getBytes(UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + headerBytes + bytes.length);
+        frame.putInt(headerBytes + bytes.length).put(type).putInt(sender).putLong(time).putLong(sequence).put(bytes);
+        return frame.flip();
+    }
+
+    // Decode the frame at the position of a buffer and move past it, or return null and leave the buffer
+    // alone if the frame is not complete yet.
+    static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        int start = buffer.position() + 4;
+        byte type = buffer.get(start);
+        int sender = buffer.getInt(start + 1);
+        long time = buffer.getLong(start + 5);
+        long sequence = buffer.getLong(start + 13);
+        int payloadLength = length - headerBytes;
+        String payload;
+        if (buffer.hasArray()) {
+            payload = new String(buffer.array(), buffer.arrayOffset() + start + headerBytes, payloadLength, UTF_8);
+        }
+        else {
+            byte[] bytes = new byte[payloadLength];
+            buffer.get(start + headerBytes, bytes);
+            payload = new String(bytes, UTF_8);
+        }
+        buffer.position(start + length);
+        return new Frame(type, sender, time, sequence, payload);
+    }
+
+    // Read the next frame from a stream, or return null at the end of the stream.
+    static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = checkLength(in.readInt());
+        } catch (EOFException e) {
+            return null;
+        }
+        return readBody(in, length, new byte[length - headerBytes]);
+    }
+
+    private static Frame readBody(DataInputStream in, int length, byte[] bytes) throws IOException {
+        byte type = in.readByte();
+        int sender = in.readInt();
+        long time = in.readLong();
+        long sequence = in.readLong();
+        in.readFully(bytes);
+        return new Frame(type, sender, time, sequence, new String(bytes, UTF_8));
+    }
+
+    // Read one text line byte by byte, such as the acknowledgement of the preface, so that nothing after it
+    // is taken from the stream; null at the end of the stream.
+    static String readTextLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.write(b);
+        }
+        return line.toString(UTF_8);
+    }
+
+    // Read the preface sent by a client; see checkPreface().
+    static byte[] readPreface(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[preface.length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // The protocol version a preface asks for.
+    static int checkPreface(byte[] bytes) throws IOException {
+        for (int i = 0; i < preface.length - 1; i++) {
+            if (bytes[i] != preface[i] && bytes[i] != compressedPreface[i]) {
+                throw new IOException("Not a protocol preface");
+            }
+        }
+        return bytes[preface.length - 1];
+    }
+
+    static boolean asksForCompression(byte[] preface) {
+        return preface[2] == compressedPreface[2];
+    }
+
+    // A DEFLATED frame holding length bytes of encoded frames, compressed with a fresh or reset deflater
+    // and flushed, so that the client can inflate every frame in it at once.
+    static ByteBuffer deflate(Deflater deflater, byte[] frames, int length) {
+        deflater.setInput(frames, 0, length);
+        byte[] out = new byte[4 + headerBytes + length / 2 + 64];
+        int size = 4 + headerBytes;
+        while (true) {
+            int count = deflater.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+            size += count;
+            if (size < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        ByteBuffer frame = ByteBuffer.wrap(out, 0, size);
+        frame.putInt(0, size - 4).put(4, DEFLATED).putInt(5, 0).putLong(9, System.currentTimeMillis()).putLong(17, 0);
+        return frame;
+    }
+
+    // Reads the frames of a connection from a stream, unpacking the frames held by DEFLATED ones.
+    static final class Reader {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private ByteBuffer inflated = ByteBuffer.allocate(0);
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        // The next frame, or null at the end of the stream.
+        Frame read() throws IOException {
+            while (true) {
+                Frame frame = decode(inflated);
+                if (frame != null) {
+                    return frame;
+                }
+                int length;
+                try {
+                    length = checkLength(in.readInt());
+                } catch (EOFException e) {
+                    return null;
+                }
+                byte[] bytes = new byte[length - headerBytes];
+                frame = readBody(in, length, bytes);
+                if (frame.type != DEFLATED) {
+                    return frame;
+                }
+                inflate(bytes);
+            }
+        }
+
+        private void inflate(byte[] bytes) throws IOException {
+            // Every DEFLATED frame is a deflate stream of its own.
+            inflater.reset();
+            inflater.setInput(bytes);
+            byte[] out = new byte[bytes.length * 4 + 1024];
+            int size = 0;
+            try {
+                while (true) {
+                    int count = inflater.inflate(out, size, out.length - size);
+                    size += count;
+                    if (size == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    else if (inflater.needsInput()) {
+                        break;
+                    }
+                    else if (count == 0) {
+                        throw new IOException("Broken deflate stream");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Broken deflate stream", e);
+            }
+            inflated = ByteBuffer.wrap(out, 0, size);
+        }
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < headerBytes || length > maxLength) {
+            throw new IOException("Bad frame length " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,70 @@
+package ChatRoom;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Durations in log-linear buckets: exact below 64 microseconds, then 32 buckets per power of two,
+// so every percentile is within about 3%. Recording is lock-free, as many threads share one histogram.
+final class Histogram {
+    private static final int subBuckets = 32;
+    private final AtomicLongArray counts = new AtomicLongArray(64 + (63 - 6) * subBuckets);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    private static int index(long micros) {
+        if (micros < 64) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        return 64 + (exponent - 6) * subBuckets + (int) (micros >> (exponent - 5)) - subBuckets;
+    }
+
+    // The lowest value of a bucket.
+    private static long lowest(int index) {
+        if (index < 64) {
+            return index;
+        }
+        int exponent = (index - 64) / subBuckets + 6;
+        return (long) ((index - 64) % subBuckets + subBuckets) << (exponent - 5);
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // The value in microseconds that a fraction of the recorded values are at or below.
+    long percentile(double fraction) {
+        long total = count();
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(lowest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    String summary() {
+        if (count() == 0) {
+            return "no samples";
+        }
+        return String.format("n=%d  p50=%s  p90=%s  p99=%s  p99.9=%s  max=%s", count(),
+                format(percentile(0.5)), format(percentile(0.9)), format(percentile(0.99)),
+                format(percentile(0.999)), format(max.get()));
+    }
+
+    private static String format(long micros) {
+        return micros < 10000 ? micros + "us" : String.format("%.1fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,114 @@
+package ChatRoom;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Hands out user IDs from a range and takes them back when users leave, in constant time whatever the population.
+// IDs never handed out are taken in order from the top of the range; released ones go on a free list and are
+// reused first. The bitmap of IDs in use catches an ID released twice.
+// After a restart, the IDs handed out by the previous run are only reused once the rest of the range is,
+// so that the IDs of the recent chat record do not go to new users right away (see resumeAfter()).
+class IdAllocator {
+    private final int first;
+    private final int size;
+
+    private final BitSet used = new BitSet();
+    private int[] free = new int[64];
+    private int freeCount = 0;
+
+    // Offset of the lowest ID never handed out.
+    private int top = 0;
+
+    // IDs below this offset were handed out before a restart; the next of them to reuse once the range runs out.
+    private int previousTop = 0;
+    private int reused = 0;
+
+    private int inUse = 0;
+
+    // A ReentrantLock rather than synchronized, so a virtual thread accepting a client is never pinned.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public IdAllocator(int first, int size) {
+        this.first = first;
+        this.size = size;
+    }
+
+    // A free ID, or -1 if every ID of the range is in use.
+    int allocate() {
+        lock.lock();
+        try {
+            int offset;
+            if (freeCount > 0) {
+                offset = free[--freeCount];
+            }
+            else if (top < size) {
+                offset = top++;
+            }
+            else if (reused < previousTop) {
+                offset = reused++;
+            }
+            else {
+                return -1;
+            }
+            used.set(offset);
+            inUse++;
+            return first + offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Give an ID back; IDs outside the range or not in use are ignored.
+    void release(int id) {
+        int offset = id - first;
+        lock.lock();
+        try {
+            if (offset < 0 || offset >= top || !used.get(offset)) {
+                return;
+            }
+            used.clear(offset);
+            inUse--;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of IDs in use.
+    int inUse() {
+        lock.lock();
+        try {
+            return inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The ID above every ID handed out so far, to be passed to resumeAfter() by the next run.
+    int watermark() {
+        lock.lock();
+        try {
+            return first + top;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Carry on from the watermark of a previous run, before any ID is handed out; one outside the range is ignored.
+    void resumeAfter(int watermark) {
+        int offset = watermark - first;
+        lock.lock();
+        try {
+            if (offset > 0 && offset <= size && top == 0) {
+                top = offset;
+                previousTop = offset;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
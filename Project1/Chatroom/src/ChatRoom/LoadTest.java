@@ -0,0 +1,361 @@
+package ChatRoom;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless load generator: simulated clients on virtual threads join a running server over the framed protocol,
+// send a mix of chat messages, searches, room changes and reconnects, and measure what they see.
+// Chat messages carry the time they were sent, so every member of the room that receives one measures the
+// end-to-end broadcast latency; the sender and the receivers share this JVM's clock.
+// Run as: java ChatRoom.LoadTest [clients] [seconds]
+public class LoadTest {
+    static final String host = System.getProperty("chat.load.host", "127.0.0.1");
+
+    // Actions per simulated client per second, with random gaps between them.
+    static final double rate = Double.parseDouble(System.getProperty("chat.load.rate", "1"));
+
+    // Clients connect evenly over this time, so the accept backlog is not flooded at once.
+    static final long rampMillis = Long.getLong("chat.load.rampMillis", 2000);
+
+    // Relative weights of the actions.
+    static final int chatWeight = Integer.getInteger("chat.load.chat", 90);
+    static final int searchWeight = Integer.getInteger("chat.load.search", 4);
+    static final int joinWeight = Integer.getInteger("chat.load.join", 5);
+    static final int exitWeight = Integer.getInteger("chat.load.exit", 1);
+
+    // Room changes pick one of this many rooms, or the lobby.
+    static final int roomCount = Integer.getInteger("chat.load.rooms", 4);
+
+    // How long a client waits for the answer to a join, search or exit before counting an error.
+    static final long replyTimeout = Long.getLong("chat.load.replyTimeoutMillis", 10000);
+
+    // Chat messages end with one of these words, which searches look for.
+    private static final String[] words = { "apple", "banana", "cherry", "grape", "lemon", "mango", "melon", "peach", "pear", "plum" };
+
+    // Whether the clients ask for their history and search results compressed.
+    static final boolean compression = Boolean.parseBoolean(System.getProperty("chat.load.compression", "true"));
+
+    // The marker that tells a load test message from any other chat line.
+    private static final String marker = "load@";
+
+    private final int clientCount;
+    private final long deadline;
+
+    private final Histogram broadcastLatency = new Histogram();
+    private final Histogram joinTime = new Histogram();
+    private final Histogram roomChangeTime = new Histogram();
+    private final Histogram searchTime = new Histogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong roomChanges = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public LoadTest(int clientCount, long seconds) {
+        this.clientCount = clientCount;
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + TimeUnit.MILLISECONDS.toNanos(rampMillis);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+        System.out.println("Load test: " + clients + " clients for " + seconds + " s against " + host + ":" + Server.port
+                + ", " + rate + " actions per client per second.");
+        new LoadTest(clients, seconds).run();
+    }
+
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clientCount; i++) {
+                long startAt = start + TimeUnit.MILLISECONDS.toNanos(rampMillis) * i / clientCount;
+                int index = i;
+                executor.execute(() -> new Sim(index, startAt).run());
+            }
+        }
+        report(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / 1000.0);
+    }
+
+    private void report(double seconds) {
+        System.out.printf("Ran %.1f s with %d clients.%n", seconds, clientCount);
+        System.out.printf("Chat messages sent: %d (%.0f/s), delivered: %d (%.0f/s).%n",
+                sent.get(), sent.get() / seconds, received.get(), received.get() / seconds);
+        System.out.println("Searches: " + searches.get() + ", room changes: " + roomChanges.get()
+                + ", reconnects: " + reconnects.get() + ", dropped by the server: " + drops.get() + ", timeouts and errors: " + errors.get() + ".");
+        System.out.println("Broadcast latency  " + broadcastLatency.summary());
+        System.out.println("Join time          " + joinTime.summary());
+        System.out.println("Room change time   " + roomChangeTime.summary());
+        System.out.println("Search reply time  " + searchTime.summary());
+    }
+
+    // One simulated client, reconnecting after each /exit, or after being dropped, until the test is over.
+    private class Sim {
+        final String name;
+        final long startAt;
+        final SplittableRandom random;
+
+        SocketChannel channel;
+        volatile int id;
+
+        // Cleared by the reader when the server closes the connection.
+        private volatile boolean open;
+
+        // The room the client is in: 0 for the lobby, else one of the load test rooms.
+        private int room;
+
+        // What the client is waiting for: the reader counts it down when the answer comes.
+        private volatile Expect expected;
+
+        Sim(int index, long startAt) {
+            this.startAt = startAt;
+            name = "load" + index;
+            random = new SplittableRandom(index);
+        }
+
+        void run() {
+            try {
+                sleepUntil(startAt);
+                while (System.nanoTime() < deadline) {
+                    if (!connect()) {
+                        return;
+                    }
+                    if (!act()) {
+                        // The test is over: leave like a user would.
+                        expect(Expect.Kind.CLOSED, "");
+                        send(Frame.COMMAND, "exit");
+                        await();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeQuietly();
+            }
+        }
+
+        // Connect, learn the ID and send the name; done once the server announces the user to the lobby.
+        // Returns false if the server did not answer in time.
+        private boolean connect() throws IOException, InterruptedException {
+            long begin = System.nanoTime();
+            channel = SocketChannel.open(new InetSocketAddress(host, Server.port));
+            // Commands are small writes that wait for their answer; Nagle's algorithm would hold them back.
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.write(ByteBuffer.wrap(compression ? Frame.compressedPreface : Frame.preface));
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            CountDownLatch idKnown = new CountDownLatch(1);
+            open = true;
+            expect(Expect.Kind.NOTICE, " has entered the chatroom!");
+            Thread.ofVirtual().start(() -> read(input, idKnown));
+            if (!idKnown.await(replyTimeout, TimeUnit.MILLISECONDS)) {
+                errors.incrementAndGet();
+                closeQuietly();
+                return false;
+            }
+            if (open) {
+                send(Frame.NAME, name);
+            }
+            if (!await() && open) {
+                closeQuietly();
+                return false;
+            }
+            if (open) {
+                joinTime.record(System.nanoTime() - begin);
+            }
+            return true;
+        }
+
+        // Act until the test is over; returns true if the client left with /exit or was dropped, and should reconnect.
+        private boolean act() throws InterruptedException {
+            int total = chatWeight + searchWeight + joinWeight + exitWeight;
+            long next = System.nanoTime();
+            room = 0;
+            while (true) {
+                // Exponential gaps give the arrivals of many independent users.
+                next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+                if (next >= deadline) {
+                    sleepUntil(deadline);
+                    return false;
+                }
+                sleepUntil(next);
+                if (!open) {
+                    drops.incrementAndGet();
+                    closeQuietly();
+                    return true;
+                }
+
+                int pick = random.nextInt(total);
+                if ((pick -= chatWeight) < 0) {
+                    send(Frame.CHAT, marker + System.nanoTime() + " from " + name + " " + words[random.nextInt(words.length)]);
+                    sent.incrementAndGet();
+                }
+                else if ((pick -= searchWeight) < 0) {
+                    long begin = System.nanoTime();
+                    expect(Expect.Kind.SEARCH, "");
+                    send(Frame.COMMAND, "search " + words[random.nextInt(words.length)]);
+                    if (await()) {
+                        searchTime.record(System.nanoTime() - begin);
+                        searches.incrementAndGet();
+                    }
+                }
+                else if ((pick -= joinWeight) < 0) {
+                    // Another room than the current one; room 0 is the lobby.
+                    int target = random.nextInt(roomCount);
+                    if (target >= room) {
+                        target++;
+                    }
+                    String targetName = target == 0 ? Room.lobby : "load" + target;
+                    long begin = System.nanoTime();
+                    expect(Expect.Kind.NOTICE, " has joined room " + targetName + ".");
+                    send(Frame.COMMAND, target == 0 ? "leave" : "join " + targetName);
+                    if (await()) {
+                        roomChangeTime.record(System.nanoTime() - begin);
+                        roomChanges.incrementAndGet();
+                        room = target;
+                    }
+                }
+                else {
+                    expect(Expect.Kind.CLOSED, "");
+                    send(Frame.COMMAND, "exit");
+                    await();
+                    closeQuietly();
+                    reconnects.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        // Read frames until the server closes the connection, timing the chat messages of the load test.
+        private void read(DataInputStream input, CountDownLatch idKnown) {
+            try {
+                String line;
+                while ((line = Frame.readTextLine(input)) != null && !line.startsWith(Frame.acknowledgement)) {
+                    if (line.startsWith("#Your ID is : ")) {
+                        id = Integer.parseInt(line.substring(14));
+                        idKnown.countDown();
+                    }
+                }
+                Frame.Reader frames = new Frame.Reader(input);
+                Frame frame;
+                while (line != null && (frame = frames.read()) != null) {
+                    received(frame);
+                }
+            } catch (IOException e) {
+                // The connection was closed.
+            }
+            // Nothing that is waited for can come any more.
+            open = false;
+            idKnown.countDown();
+            Expect waiting = expected;
+            if (waiting != null) {
+                waiting.done.countDown();
+            }
+        }
+
+        private void received(Frame frame) {
+            String payload = frame.payload();
+            Expect waiting = expected;
+            switch (frame.type()) {
+                case Frame.CHAT -> {
+                    int at = payload.indexOf(marker);
+                    if (at >= 0) {
+                        int end = payload.indexOf(' ', at);
+                        long sentAt = Long.parseLong(payload, at + marker.length(), end, 10);
+                        broadcastLatency.record(System.nanoTime() - sentAt);
+                        received.incrementAndGet();
+                    }
+                }
+                case Frame.PING -> send(Frame.PONG, "");
+                case Frame.RECORD -> {
+                    if (waiting != null && waiting.kind == Expect.Kind.SEARCH) {
+                        waiting.done.countDown();
+                    }
+                }
+                case Frame.NOTICE -> {
+                    if (waiting == null) {
+                        return;
+                    }
+                    if (waiting.kind == Expect.Kind.SEARCH && payload.equals("No records found!")) {
+                        waiting.done.countDown();
+                    }
+                    else if (waiting.kind == Expect.Kind.NOTICE && payload.equals("[" + id + "]" + name + waiting.text)) {
+                        waiting.done.countDown();
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        // Set what to wait for before sending the request; if the reader has already stopped, it comes at once.
+        private void expect(Expect.Kind kind, String text) {
+            Expect waiting = new Expect(kind, text);
+            expected = waiting;
+            if (!open) {
+                waiting.done.countDown();
+            }
+        }
+
+        // Wait for what was expected; returns false if it did not come, counting a timeout as an error.
+        private boolean await() throws InterruptedException {
+            Expect waiting = expected;
+            boolean answered = waiting.done.await(replyTimeout, TimeUnit.MILLISECONDS);
+            expected = null;
+            if (!answered) {
+                errors.incrementAndGet();
+                return false;
+            }
+            return open || waiting.kind == Expect.Kind.CLOSED;
+        }
+
+        // Send a frame; if the server has dropped the connection, the next action notices.
+        private void send(byte type, String payload) {
+            ByteBuffer frame = Frame.encode(type, id, System.currentTimeMillis(), payload);
+            try {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            } catch (IOException e) {
+                open = false;
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    // An answer a simulated client waits for.
+    private record Expect(Kind kind, String text, CountDownLatch done) {
+        enum Kind { NOTICE, SEARCH, CLOSED }
+
+        Expect(Kind kind, String text) {
+            this(kind, text, new CountDownLatch(1));
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ChatRoom;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Server logging off the message path: callers claim a slot in a bounded ring and return at once,
+// and one daemon thread formats the entries and writes them to stdout in buffered batches.
+// If the ring is full the entry is dropped and counted, so a slow console never holds up a handler.
+// Every category has a level, chat.logging.level.<category> or else chat.logging.level (INFO), and may
+// keep only one entry in chat.logging.sample.<category>; the text of an entry is only built once it is kept.
+final class Log {
+
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    enum Category {
+        SERVER, CONNECTION, MESSAGE, CHAT_LOG, SEARCH, CLUSTER;
+
+        final Level level = Level.valueOf(System.getProperty("chat.logging.level." + name().toLowerCase(), defaultLevel.name()));
+        final long sampleEvery = Math.max(1, Long.getLong("chat.logging.sample." + name().toLowerCase(), 1));
+        private final AtomicLong seen = new AtomicLong();
+    }
+
+    private static final Level defaultLevel = Level.valueOf(System.getProperty("chat.logging.level", "INFO"));
+
+    // Number of entries the ring holds, rounded up to a power of two.
+    private static final int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.logging.bufferEntries", 8192) - 1)) << 1;
+
+    private record Entry(long time, Level level, Category category, String text, Throwable error) { }
+
+    // Slots are claimed by moving the tail and published by filling them; the writer empties them in order.
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(capacity);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+
+    static final LongAdder written = new LongAdder();
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder sampledOut = new LongAdder();
+
+    private static final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(Log::run, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static boolean enabled(Level level, Category category) {
+        return level.compareTo(category.level) >= 0;
+    }
+
+    // The detail is appended to the text only if the entry is kept, so callers do not build strings for nothing.
+    static void debug(Category category, String text, Object detail) {
+        log(Level.DEBUG, category, text, detail, null);
+    }
+
+    static void info(Category category, String text) {
+        log(Level.INFO, category, text, null, null);
+    }
+
+    static void warn(Category category, String text) {
+        log(Level.WARN, category, text, null, null);
+    }
+
+    static void error(Category category, String text, Throwable error) {
+        log(Level.ERROR, category, text, null, error);
+    }
+
+    private static void log(Level level, Category category, String text, Object detail, Throwable error) {
+        if (!enabled(level, category)) {
+            return;
+        }
+        if (category.sampleEvery > 1 && category.seen.getAndIncrement() % category.sampleEvery != 0) {
+            sampledOut.increment();
+            return;
+        }
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.set((int) (slot & (capacity - 1)), new Entry(System.currentTimeMillis(), level, category, detail == null ? text : text + detail, error));
+    }
+
+    // The writer: take entries in order, flushing whenever the ring runs empty.
+    private static void run() {
+        long reportedDrops = 0;
+        while (true) {
+            if (!writeAvailable()) {
+                long drops = dropped.sum();
+                if (drops > reportedDrops) {
+                    out.println(LocalDateTime.now().format(timeFormat) + " WARN [SERVER] " + (drops - reportedDrops) + " log entries dropped, the log buffer was full.");
+                    reportedDrops = drops;
+                }
+                out.flush();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+    }
+
+    // Write the entries published so far; returns false if there were none.
+    private static boolean writeAvailable() {
+        boolean any = false;
+        while (true) {
+            int index = (int) (head & (capacity - 1));
+            Entry entry = ring.get(index);
+            if (entry == null) {
+                // Nothing more, or a slot claimed but not filled yet.
+                return any;
+            }
+            ring.set(index, null);
+            head = head + 1;
+            write(entry);
+            any = true;
+        }
+    }
+
+    private static void write(Entry entry) {
+        out.println(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault()).format(timeFormat)
+                + " " + entry.level + " [" + entry.category + "] " + entry.text);
+        if (entry.error != null) {
+            entry.error.printStackTrace(out);
+        }
+        written.increment();
+    }
+
+    // Give the writer a moment to write what is queued when the server stops.
+    static void flush() {
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head < tail.get() && System.nanoTime() < until) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        out.flush();
+    }
+}
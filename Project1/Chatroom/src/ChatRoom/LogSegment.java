@@ -0,0 +1,389 @@
+package ChatRoom;
+
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// One file of the segmented chat record, named after the global offset of its first byte.
+// Lines are appended through a FileChannel by the chat log writer and read back through a memory mapping.
+// Once closed and cold, a segment can be replaced by a gzip-compressed copy (".log.gz") which is
+// inflated into memory when it is read, so readers see the same bytes either way.
+// Next to it, a ".index" file keeps a sparse index of (message number, timestamp, position) entries.
+class LogSegment {
+
+    private static final int entryBytes = 24;
+
+    // The file of the segment being appended to is grown this many bytes at a time, and readers map all of it,
+    // so that they do not remap the whole segment every time a few lines were committed. The file is cut back
+    // to the committed bytes when the segment is rolled or the log closed, and after a crash by truncateToLastLine().
+    static final int growBytes = Integer.getInteger("chat.log.growBytes", 1024 * 1024);
+
+    final long base;
+    final Path path;
+    final boolean compressed;
+    private final Path indexPath;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+
+    // The inflated bytes of a compressed segment, kept until memory runs short.
+    private SoftReference<ByteBuffer> inflated = new SoftReference<>(null);
+
+    // Committed bytes of the segment, and the size of its file, which may be larger.
+    private volatile long size;
+    private volatile long allocated;
+
+    // Read-only mapping of the segment, remapped when readers need bytes committed after it was made.
+    private MappedByteBuffer mapped;
+    private final ReentrantLock mapLock = new ReentrantLock();
+
+    // Sparse index entries, in message order.
+    private long[] entryMessages = new long[16];
+    private long[] entryTimes = new long[16];
+    private long[] entryPositions = new long[16];
+    private int entryCount = 0;
+    private final ReentrantLock entryLock = new ReentrantLock();
+
+    private LogSegment(Path directory, long base, boolean compressed) throws IOException {
+        this.base = base;
+        this.compressed = compressed;
+        indexPath = directory.resolve(fileName(base, ".index"));
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (compressed) {
+            path = directory.resolve(fileName(base, ".log.gz"));
+            channel = null;
+            size = inflatedSize(path);
+        }
+        else {
+            path = directory.resolve(fileName(base, ".log"));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+            allocated = size;
+            channel.position(size);
+        }
+    }
+
+    // The size of the data in a gzip file, from the ISIZE field of its trailer.
+    private static long inflatedSize(Path gzip) throws IOException {
+        try (FileChannel file = FileChannel.open(gzip, StandardOpenOption.READ)) {
+            ByteBuffer trailer = ByteBuffer.allocate(4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            file.read(trailer, file.size() - 4);
+            return trailer.getInt(0) & 0xFFFFFFFFL;
+        }
+    }
+
+    static String fileName(long base, String extension) {
+        return String.format("%020d%s", base, extension);
+    }
+
+    // Create or open the segment starting at a global offset and load its sparse index.
+    static LogSegment open(Path directory, long base) throws IOException {
+        return open(directory, base, false);
+    }
+
+    static LogSegment open(Path directory, long base, boolean compressed) throws IOException {
+        LogSegment segment = new LogSegment(directory, base, compressed);
+        segment.loadIndex();
+        return segment;
+    }
+
+    // Write a compressed copy of this closed segment and open it; this segment stays usable until deleted.
+    LogSegment compress(Path directory) throws IOException {
+        Path target = directory.resolve(fileName(base, ".log.gz"));
+        Path temporary = directory.resolve(fileName(base, ".log.gz.tmp"));
+        ByteBuffer data = view();
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), 64 * 1024)) {
+            byte[] chunk = new byte[64 * 1024];
+            while (data.hasRemaining()) {
+                int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        try (FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        return open(directory, base, true);
+    }
+
+    // Number of the first message of the segment, or -1 if it has no index entry.
+    long firstMessage() {
+        entryLock.lock();
+        try {
+            return entryCount == 0 ? -1 : entryMessages[0];
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    // Time of the first message of the segment, or 0 if it has none.
+    long firstTime() {
+        entryLock.lock();
+        try {
+            return entryCount == 0 ? 0 : entryTimes[0];
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    // Close the segment and remove its files.
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(indexPath);
+    }
+
+    // Remove only the data file, once a compressed copy has replaced it.
+    // The mapping is made first so that readers still holding this segment keep working.
+    void deleteData() throws IOException {
+        view();
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    long size() {
+        return size;
+    }
+
+    long end() {
+        return base + size;
+    }
+
+    // Append encoded lines at the end of the segment. Only called by the chat log writer.
+    void append(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        long written = 0;
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += buffers[i].remaining();
+        }
+        if (size + total > allocated) {
+            // Only the writer grows the file, one byte written at its new end; the lines then overwrite the zeros.
+            long grown = Math.min(Integer.MAX_VALUE, Math.max(size + total, (size + total + growBytes - 1) / growBytes * growBytes));
+            channel.write(ByteBuffer.allocate(1), grown - 1);
+            allocated = grown;
+        }
+        while (written < total) {
+            written += channel.write(buffers, offset, length);
+        }
+        size += total;
+    }
+
+    // Cut the file back to the committed bytes, once nothing more will be appended to it.
+    // Under the map lock, so that no reader maps the file beyond its end, which would grow it again.
+    void trim() throws IOException {
+        mapLock.lock();
+        try {
+            if (channel != null && allocated > size) {
+                channel.truncate(size);
+                allocated = size;
+            }
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // Bytes the segment takes on disk.
+    long diskBytes() throws IOException {
+        return compressed ? Files.size(path) : size;
+    }
+
+    void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+        indexChannel.force(false);
+    }
+
+    // Drop a partial last line left behind by a crash, so that appends start on a line boundary.
+    void truncateToLastLine() throws IOException {
+        if (compressed) {
+            return;
+        }
+        ByteBuffer view = view();
+        long last = view.limit();
+        while (last > 0 && view.get((int) last - 1) != '\n') {
+            last--;
+        }
+        if (last < size) {
+            channel.truncate(last);
+            channel.position(last);
+            size = last;
+            allocated = last;
+            mapLock.lock();
+            try {
+                mapped = null;
+            } finally {
+                mapLock.unlock();
+            }
+        }
+    }
+
+    // A read-only view of every committed byte of the segment, positioned at zero.
+    ByteBuffer view() throws IOException {
+        mapLock.lock();
+        try {
+            if (compressed) {
+                ByteBuffer data = inflated.get();
+                if (data == null) {
+                    data = inflate();
+                    inflated = new SoftReference<>(data);
+                }
+                return data.duplicate();
+            }
+            // The file is never smaller than what has been committed, and readers stop at that.
+            long committed = size;
+            if (mapped == null || mapped.capacity() < committed) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(committed, allocated));
+            }
+            return mapped.duplicate().limit((int) committed);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private ByteBuffer inflate() throws IOException {
+        byte[] data = new byte[(int) size];
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(path)), 64 * 1024)) {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new EOFException("Truncated segment " + path);
+                }
+                read += count;
+            }
+        }
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    // Record that a message starts at a position of this segment. Only called by the chat log writer.
+    void addEntry(long message, long time, long position) throws IOException {
+        entryLock.lock();
+        try {
+            if (entryCount == entryMessages.length) {
+                entryMessages = Arrays.copyOf(entryMessages, entryCount * 2);
+                entryTimes = Arrays.copyOf(entryTimes, entryCount * 2);
+                entryPositions = Arrays.copyOf(entryPositions, entryCount * 2);
+            }
+            entryMessages[entryCount] = message;
+            entryTimes[entryCount] = time;
+            entryPositions[entryCount] = position;
+            entryCount++;
+        } finally {
+            entryLock.unlock();
+        }
+        ByteBuffer entry = ByteBuffer.allocate(entryBytes).putLong(message).putLong(time).putLong(position).flip();
+        while (entry.hasRemaining()) {
+            indexChannel.write(entry, indexChannel.size());
+        }
+    }
+
+    // Forget every index entry, so that the segment can be indexed again from its first line.
+    void clearEntries() throws IOException {
+        entryLock.lock();
+        try {
+            entryCount = 0;
+        } finally {
+            entryLock.unlock();
+        }
+        indexChannel.truncate(0);
+    }
+
+    private void loadIndex() throws IOException {
+        long entries = indexChannel.size() / entryBytes;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (entries * entryBytes));
+        while (buffer.hasRemaining() && indexChannel.read(buffer, buffer.position()) > 0) {
+        }
+        buffer.flip();
+        long previous = -1;
+        for (int i = 0; i < entries; i++) {
+            long message = buffer.getLong();
+            long time = buffer.getLong();
+            long position = buffer.getLong();
+            // Stop at entries that point past the data, e.g. written just before a crash.
+            if (message <= previous || position >= size) {
+                break;
+            }
+            addLoadedEntry(message, time, position);
+            previous = message;
+        }
+        indexChannel.truncate((long) entryCount * entryBytes);
+    }
+
+    private void addLoadedEntry(long message, long time, long position) {
+        if (entryCount == entryMessages.length) {
+            entryMessages = Arrays.copyOf(entryMessages, entryCount * 2);
+            entryTimes = Arrays.copyOf(entryTimes, entryCount * 2);
+            entryPositions = Arrays.copyOf(entryPositions, entryCount * 2);
+        }
+        entryMessages[entryCount] = message;
+        entryTimes[entryCount] = time;
+        entryPositions[entryCount] = position;
+        entryCount++;
+    }
+
+    // The last entry at or before a message number as {message, time, position}, or null if there is none.
+    long[] floorByMessage(long message) {
+        entryLock.lock();
+        try {
+            int i = floor(entryMessages, message);
+            return i < 0 ? null : new long[] { entryMessages[i], entryTimes[i], entryPositions[i] };
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    // The last entry at or before a time as {message, time, position}, or null if there is none.
+    long[] floorByTime(long time) {
+        entryLock.lock();
+        try {
+            int i = floor(entryTimes, time);
+            return i < 0 ? null : new long[] { entryMessages[i], entryTimes[i], entryPositions[i] };
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    // The last entry, or null if the segment has none.
+    long[] lastEntry() {
+        entryLock.lock();
+        try {
+            int i = entryCount - 1;
+            return i < 0 ? null : new long[] { entryMessages[i], entryTimes[i], entryPositions[i] };
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    // Index of the last value at or below a key among the first entryCount ascending values, or -1.
+    private int floor(long[] values, long key) {
+        int low = 0;
+        int high = entryCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= key) {
+                found = middle;
+                low = middle + 1;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        indexChannel.close();
+    }
+}
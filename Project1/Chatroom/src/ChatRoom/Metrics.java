@@ -0,0 +1,116 @@
+package ChatRoom;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Counters and latency histograms of the whole server, cheap enough to update on every message.
+// A timer samples the message counters every second for the rates; the server reports a snapshot
+// through /stats and appends one to chat.stats.file every chat.stats.intervalSeconds.
+final class Metrics {
+
+    // How often a snapshot is appended to the stats file; 0 turns the file off.
+    static final long dumpInterval = Long.getLong("chat.stats.intervalSeconds", 60);
+    static final String dumpFile = System.getProperty("chat.stats.file", "stats.log");
+
+    // Whether /stats is answered for clients on other machines too; by default only for local ones.
+    static final boolean remoteStats = Boolean.getBoolean("chat.stats.remote");
+
+    static final LongAdder accepted = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+
+    // Messages and bytes queued for clients; a broadcast counts once per receiver.
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+
+    // Messages dropped for clients that fell behind, and clients disconnected for it.
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder slowDisconnects = new LongAdder();
+
+    // Clients dropped by the reaper, for not being heard from or for not reading what they are sent.
+    static final LongAdder idleTimeouts = new LongAdder();
+    static final LongAdder writeTimeouts = new LongAdder();
+
+    // Messages past a client's rate limits, whatever was done about them.
+    static final LongAdder rateLimited = new LongAdder();
+
+    // Bytes of frames sent compressed to the clients that asked for it, before and after compression.
+    static final LongAdder bulkBytes = new LongAdder();
+    static final LongAdder bulkBytesDeflated = new LongAdder();
+
+    // Queueing one message for every member of a room.
+    static final Histogram fanOut = new Histogram();
+
+    // From appending a line to the chat record until it is committed.
+    static final Histogram logAppend = new Histogram();
+
+    // From a /search until its results are queued, peers included.
+    static final Histogram search = new Histogram();
+
+    // The message counters once a second over the last minute, for the rates.
+    private static final int window = 60;
+    private static final long[] inSamples = new long[window + 1];
+    private static final long[] outSamples = new long[window + 1];
+    private static long sampleCount = 0;
+    private static final ReentrantLock sampleLock = new ReentrantLock();
+
+    private static final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private Metrics() {
+    }
+
+    // Called once a second by the server's timer.
+    static void sample() {
+        sampleLock.lock();
+        try {
+            int slot = (int) (sampleCount++ % inSamples.length);
+            inSamples[slot] = messagesIn.sum();
+            outSamples[slot] = messagesOut.sum();
+        } finally {
+            sampleLock.unlock();
+        }
+    }
+
+    // Messages per second over the last seconds, or over as many as have been sampled.
+    private static double rate(long[] samples, int seconds) {
+        sampleLock.lock();
+        try {
+            int span = (int) Math.min(seconds, sampleCount - 1);
+            if (span <= 0) {
+                return 0;
+            }
+            long latest = samples[(int) ((sampleCount - 1) % samples.length)];
+            long earlier = samples[(int) ((sampleCount - 1 - span) % samples.length)];
+            return (double) (latest - earlier) / span;
+        } finally {
+            sampleLock.unlock();
+        }
+    }
+
+    // A snapshot of the counters, the gauges the server passes in and the histograms, one line each.
+    static String report(int connected, int rooms, long queued, int deepestQueue) {
+        StringBuilder report = new StringBuilder();
+        report.append("Stats at ").append(LocalDateTime.now().format(timeFormat)).append('\n');
+        report.append(String.format("Clients: %d connected, %d accepted, %d disconnected for falling behind; rooms: %d\n",
+                connected, accepted.sum(), slowDisconnects.sum(), rooms));
+        report.append(String.format("Reaped: %d silent clients, %d clients not reading\n", idleTimeouts.sum(), writeTimeouts.sum()));
+        report.append(String.format("Messages in: %d, %.1f/s over 10 s, %.1f/s over 60 s\n",
+                messagesIn.sum(), rate(inSamples, 10), rate(inSamples, window)));
+        report.append(String.format("Messages out: %d (%d KB), %.1f/s over 10 s, %.1f/s over 60 s\n",
+                messagesOut.sum(), bytesOut.sum() / 1024, rate(outSamples, 10), rate(outSamples, window)));
+        report.append(String.format("Outbound queues: %d messages queued, deepest %d, %d dropped\n",
+                queued, deepestQueue, dropped.sum()));
+        long bulk = bulkBytes.sum();
+        long deflated = bulkBytesDeflated.sum();
+        report.append(String.format("Compression: %d KB of bulk output sent as %d KB, %d KB saved (%.0f%%)\n",
+                bulk / 1024, deflated / 1024, (bulk - deflated) / 1024, bulk == 0 ? 0.0 : 100.0 * (bulk - deflated) / bulk));
+        report.append(String.format("Rate limits: %d messages over, action %s\n", rateLimited.sum(), RateLimiter.action));
+        report.append("Fan-out time: ").append(fanOut.summary()).append('\n');
+        report.append("Log append latency: ").append(logAppend.summary()).append('\n');
+        report.append("Search latency: ").append(search.summary()).append('\n');
+        report.append(String.format("Logging: %d entries written, %d dropped, %d sampled out\n",
+                Log.written.sum(), Log.dropped.sum(), Log.sampledOut.sum()));
+        return report.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// One search of a room's chat record, split into chunks that are read at once on a fork-join pool shared
+// by every search, so that a large search uses all cores while the threads serving chat never wait for it.
+// The chunks are slices of the lines the index points at or, when the index cannot narrow the query down,
+// byte ranges of the record. They finish in any order, but their matches are passed on in record order,
+// each chunk as soon as all earlier ones are done, so the first results go out before the whole record is read.
+final class ParallelSearch {
+
+    static final int parallelism = Integer.getInteger("chat.search.parallelism", Runtime.getRuntime().availableProcessors());
+
+    // Size of one chunk: bytes of the record to read, or lines the index points at.
+    static final int chunkBytes = Integer.getInteger("chat.search.chunkBytes", 1024 * 1024);
+    static final int chunkLines = Integer.getInteger("chat.search.chunkLines", 256);
+
+    private static final ForkJoinPool pool = new ForkJoinPool(parallelism, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("search-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }, null, true);
+
+    private interface Chunk {
+        void read(ChatLog.Listener listener) throws IOException;
+    }
+
+    private final ChatLog chatLog;
+    private final SearchQuery query;
+    private final int limit;
+    private final Predicate<String> sink;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    // The matches of each finished chunk, until they are passed on; guarded by the lock, like the cursor.
+    private final List<List<String>> found;
+    private int nextChunk = 0;
+    private int passed = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean stopped = false;
+
+    // Completed with the number of lines passed on.
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+    private ParallelSearch(Room room, SearchQuery query, int limit, Predicate<String> sink) {
+        chatLog = room.chatLog;
+        this.query = query;
+        this.limit = limit;
+        this.sink = sink;
+        long from = query.sinceOffset(chatLog);
+        long[] candidates = query.candidates(room.searchIndex);
+        if (candidates != null) {
+            int first = 0;
+            while (first < candidates.length && candidates[first] < from) {
+                first++;
+            }
+            for (int start = first; start < candidates.length; start += chunkLines) {
+                long[] slice = Arrays.copyOfRange(candidates, start, Math.min(candidates.length, start + chunkLines));
+                chunks.add(listener -> {
+                    for (long offset : slice) {
+                        String line = chatLog.readLine(offset);
+                        if (line != null) {
+                            listener.committed(offset, line);
+                        }
+                    }
+                });
+            }
+        }
+        else {
+            long[] bounds = chatLog.split(from, chunkBytes);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long chunkStart = bounds[i];
+                long chunkEnd = bounds[i + 1];
+                chunks.add(listener -> chatLog.scanBetween(chunkStart, chunkEnd, listener));
+            }
+        }
+        found = new ArrayList<>(Collections.nCopies(chunks.size(), null));
+    }
+
+    // Pass up to limit lines of a room's record matching a query to a sink, oldest first, until the sink
+    // returns false. The sink is called by one thread at a time; the future completes with the number passed.
+    static CompletableFuture<Integer> start(Room room, SearchQuery query, int limit, Predicate<String> sink) {
+        ParallelSearch search = new ParallelSearch(room, query, limit, sink);
+        if (search.chunks.isEmpty()) {
+            search.done.complete(0);
+        }
+        for (int i = 0; i < search.chunks.size(); i++) {
+            int chunk = i;
+            pool.execute(() -> search.read(chunk));
+        }
+        return search.done;
+    }
+
+    // Collect the matches of a chunk, a chunk never needing more than limit of them, then pass on what is due.
+    private void read(int chunk) {
+        List<String> matches = new ArrayList<>();
+        if (!stopped) {
+            try {
+                chunks.get(chunk).read((offset, line) -> {
+                    if (matches.size() < limit && query.matches(line)) {
+                        matches.add(line);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                stopped = true;
+                done.completeExceptionally(e);
+                return;
+            }
+        }
+        lock.lock();
+        try {
+            found.set(chunk, matches);
+            while (!stopped && nextChunk < found.size() && found.get(nextChunk) != null) {
+                for (String line : found.get(nextChunk)) {
+                    if (passed == limit || !sink.test(line)) {
+                        stopped = true;
+                        break;
+                    }
+                    passed++;
+                }
+                found.set(nextChunk++, null);
+            }
+            if (passed == limit) {
+                stopped = true;
+            }
+            if (stopped || nextChunk == found.size()) {
+                done.complete(passed);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ChatRoom;
+
+import java.util.concurrent.TimeUnit;
+
+// Token bucket limits on what one client sends, in messages and in bytes per second, with separate
+// buckets for chat lines and for commands, which cost the server more than they cost the client.
+// A client past its limit is slowed down by no longer reading from it for a while (DELAY), has the
+// message refused (REJECT), or is disconnected (DISCONNECT), depending on chat.rate.action.
+// Only the thread reading the connection uses its limiter, so nothing here is synchronized.
+class RateLimiter {
+
+    enum Action { DELAY, REJECT, DISCONNECT }
+
+    static final Action action = Action.valueOf(System.getProperty("chat.rate.action", "DELAY"));
+
+    // Limits per second; 0 turns a limit off.
+    static final double chatMessages = Double.parseDouble(System.getProperty("chat.rate.chat.messagesPerSecond", "20"));
+    static final double chatBytes = Double.parseDouble(System.getProperty("chat.rate.chat.bytesPerSecond", "16384"));
+    static final double commandMessages = Double.parseDouble(System.getProperty("chat.rate.command.messagesPerSecond", "5"));
+    static final double commandBytes = Double.parseDouble(System.getProperty("chat.rate.command.bytesPerSecond", "4096"));
+
+    // A client that kept quiet may send this many seconds' worth at once.
+    static final double burstSeconds = Double.parseDouble(System.getProperty("chat.rate.burstSeconds", "2"));
+
+    private final TokenBucket chatCount = new TokenBucket(chatMessages);
+    private final TokenBucket chatSize = new TokenBucket(chatBytes);
+    private final TokenBucket commandCount = new TokenBucket(commandMessages);
+    private final TokenBucket commandSize = new TokenBucket(commandBytes);
+
+    // Account for a message of some size. Returns 0 if it may go ahead right away, the nanoseconds to stop
+    // reading from the client for if it goes ahead but the client has to slow down, or -1 if it is refused.
+    long admit(boolean command, int bytes) {
+        TokenBucket count = command ? commandCount : chatCount;
+        TokenBucket size = command ? commandSize : chatSize;
+        long now = System.nanoTime();
+        if (action == Action.DELAY) {
+            return Math.max(count.take(1, now), size.take(bytes, now));
+        }
+        if (count.available(now) < 1 || size.available(now) < bytes) {
+            return -1;
+        }
+        count.take(1, now);
+        size.take(bytes, now);
+        return 0;
+    }
+
+    // Tokens flow in at a steady rate up to a burst; taking more than there are leaves a debt to wait out.
+    private static class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long updated = System.nanoTime();
+
+        TokenBucket(double rate) {
+            this.rate = rate;
+            burst = Math.max(1, rate * burstSeconds);
+            tokens = burst;
+        }
+
+        double available(long now) {
+            if (rate <= 0) {
+                return Double.MAX_VALUE;
+            }
+            tokens = Math.min(burst, tokens + (now - updated) / 1e9 * rate);
+            updated = now;
+            return tokens;
+        }
+
+        // Take tokens, going into debt if needed; returns the nanoseconds until the debt is paid.
+        long take(double amount, long now) {
+            if (rate <= 0) {
+                return 0;
+            }
+            tokens = available(now) - amount;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+}
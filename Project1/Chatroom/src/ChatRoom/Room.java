@@ -0,0 +1,320 @@
+package ChatRoom;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// A named chat room with its own members, chat record and search index.
+// Rooms share no locks, queues or files, so a busy room never holds up the others.
+// A room other than the lobby is closed once nobody is in it (see Server.unloadIfEmpty()); a closed room
+// lets nobody in, and whoever tries opens the room again.
+// Within a room, every message goes out under the order lock: a line of chat is stamped with the server's time
+// and its sequence number, its message number in the chat record, and queued for the record and every member
+// at once, so the record and all members see the room's messages in the same order.
+class Room implements AutoCloseable {
+
+    // Every user starts in the lobby, which keeps the chat record of the single-room server.
+    static final String lobby = "lobby";
+
+    final String name;
+    final ChatLog chatLog;
+    final SearchIndex searchIndex;
+
+    // How long a replay waits at most for the chat record to commit lines no longer among the recent ones.
+    static final long replayCommitTimeout = 1000;
+
+    // Lines posted lately are kept in memory, so that a replay does not wait for the chat record to commit them.
+    static final int recentLines = Integer.getInteger("chat.room.recentLines", 256);
+
+    private static final DateTimeFormatter lineTime = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // The current epoch of the membership, replaced on every join and leave.
+    private volatile Membership membership = new Membership(0, new Server.User[0]);
+    private final ReentrantLock membershipLock = new ReentrantLock();
+
+    // Held while a message is stamped and queued; the time stamp of the current second, formatted once per second,
+    // the recent lines by sequence number and the users entering, with what was sent to them meanwhile, are guarded by it too.
+    private final ReentrantLock order = new ReentrantLock();
+    private long stampSecond = -1;
+    private String stamp;
+    private final String[] recent = new String[recentLines];
+    private final long[] recentSequences = new long[recentLines];
+    private final Map<Server.User, List<Connection.Shared>> entering = new HashMap<>();
+
+    // Set under the order lock once the room is to be closed.
+    private boolean closed = false;
+
+    public Room(String name) throws IOException {
+        this(name, directory(name));
+    }
+
+    // A room keeping its chat record somewhere else, as the benchmarks do.
+    Room(String name, Path directory) throws IOException {
+        this.name = name;
+        chatLog = new ChatLog(directory);
+        searchIndex = new SearchIndex(chatLog.directory().resolve("search.idx"));
+        searchIndex.open(chatLog);
+        chatLog.setListener(searchIndex);
+    }
+
+    // Where the chat record of a room is kept.
+    static Path directory(String name) {
+        return name.equals(lobby) ? Paths.get("ChatRecord") : Paths.get("Rooms", name);
+    }
+
+    // Room names double as directory names.
+    static boolean validName(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    // One epoch of the membership: the members between two joins or leaves.
+    // It never changes once published, so a broadcast reads it without locking and a sent message can keep
+    // the epoch it went to; the list of receivers is only built if someone asks for it.
+    record Membership(long epoch, Server.User[] users) {
+
+        String receivers() {
+            StringBuilder result = new StringBuilder("Last Message Receivers:");
+            for (Server.User user : users) {
+                result.append(" [").append(user.id).append("]").append(user.name).append(",");
+            }
+            return result.substring(0, result.length() - 1);
+        }
+    }
+
+    // A line of chat as it went out: its sequence number, the server's time, the line as stored, and its receivers.
+    record Posted(long sequence, long time, String line, Membership receivers) { }
+
+    // The records a user entering should see before anything sent after, given the sequence number
+    // that the messages sent after will start from.
+    interface Replay {
+        void send(long next) throws IOException;
+    }
+
+    // Stamp a line of chat with the server's time and the next sequence number, then queue it for the chat record,
+    // every member and, through relay, anyone else who should get the room's messages in order, like peers.
+    // If the chat record cannot take it, nobody gets it.
+    Posted post(int senderID, String senderName, String text, Consumer<Posted> relay) throws IOException {
+        order.lock();
+        try {
+            long time = System.currentTimeMillis();
+            long second = time / 1000;
+            if (second != stampSecond) {
+                stampSecond = second;
+                stamp = lineTime.format(Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault()));
+            }
+            String line = stamp + " [" + senderID + "]" + senderName + " : " + text;
+            long sequence = chatLog.append(line);
+            Posted posted = new Posted(sequence, time, line, broadcast(Frame.CHAT, senderID, time, sequence, line));
+            recent[(int) (sequence % recent.length)] = line;
+            recentSequences[(int) (sequence % recent.length)] = sequence;
+            relay.accept(posted);
+            return posted;
+        } finally {
+            order.unlock();
+        }
+    }
+
+    // Add a user, queueing first what replay sends: replay covers the messages posted until the user is
+    // marked as entering, and those posted after, held back during the replay, follow it, so the user misses
+    // none, sees none twice, and gets them all in sequence order. The room does not wait for the replay.
+    // Returns false, without replaying, if the room is closed.
+    boolean enter(Server.User user, Replay replay) throws IOException {
+        long next;
+        List<Connection.Shared> held = new ArrayList<>();
+        order.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            next = chatLog.appended();
+            entering.put(user, held);
+        } finally {
+            order.unlock();
+        }
+        boolean replayed = false;
+        try {
+            replay.send(next);
+            replayed = true;
+        } finally {
+            order.lock();
+            try {
+                entering.remove(user);
+                if (replayed) {
+                    for (Connection.Shared message : held) {
+                        user.connection.send(message);
+                    }
+                    join(user);
+                }
+            } finally {
+                order.unlock();
+            }
+        }
+        return true;
+    }
+
+    // The lines of the chat record from one sequence number up to another: the committed ones from the record,
+    // the others from the recent lines, or once committed if they are no longer among them.
+    List<String> lines(long from, long until) throws IOException {
+        from = Math.max(from, chatLog.firstMessage());
+        long committed = Math.min(until, chatLog.messageCount());
+        List<String> lines = from < committed ? chatLog.readMessages(from, (int) (committed - from)) : new ArrayList<>();
+        long missing = from + lines.size();
+        order.lock();
+        try {
+            for (; missing < until; missing++) {
+                int slot = (int) (missing % recent.length);
+                if (recent[slot] == null || recentSequences[slot] != missing) {
+                    break;
+                }
+                lines.add(recent[slot]);
+            }
+        } finally {
+            order.unlock();
+        }
+        if (missing < until) {
+            try {
+                if (!chatLog.awaitCommitted(until, replayCommitTimeout)) {
+                    Log.warn(Log.Category.CHAT_LOG, "The chat record of " + name + " is slow to commit; a replay misses its latest lines.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            lines.addAll(chatLog.readMessages(missing, (int) (until - missing)));
+        }
+        return lines;
+    }
+
+    // Publish the next epoch with a user added, unless it is a member already; joins and leaves copy the members,
+    // messages do not. A user whose connection closed meanwhile is left out: the leave that went with the close
+    // found nothing to take out, and nothing else would.
+    void join(Server.User user) {
+        membershipLock.lock();
+        try {
+            if (user.connection.closed()) {
+                return;
+            }
+            Server.User[] users = membership.users;
+            for (Server.User member : users) {
+                if (member == user) {
+                    return;
+                }
+            }
+            Server.User[] joined = Arrays.copyOf(users, users.length + 1);
+            joined[users.length] = user;
+            membership = new Membership(membership.epoch + 1, joined);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    // Publish the next epoch without a user, if it is a member.
+    void leave(Server.User user) {
+        membershipLock.lock();
+        try {
+            Server.User[] users = membership.users;
+            for (int i = 0; i < users.length; i++) {
+                if (users[i] == user) {
+                    Server.User[] left = Arrays.copyOf(users, users.length - 1);
+                    System.arraycopy(users, i + 1, left, i, users.length - i - 1);
+                    membership = new Membership(membership.epoch + 1, left);
+                    return;
+                }
+            }
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    int size() {
+        return membership.users.length;
+    }
+
+    // Close the room to whoever would enter it, if nobody is in it; returns whether it did.
+    // Then it is only left to close().
+    boolean closeIfEmpty() {
+        order.lock();
+        try {
+            if (closed || size() > 0 || !entering.isEmpty()) {
+                return false;
+            }
+            closed = true;
+            return true;
+        } finally {
+            order.unlock();
+        }
+    }
+
+    // Send a message to every member of the room; it is encoded once and only queued.
+    // Returns the epoch of the membership it was sent to.
+    Membership broadcast(byte type, int senderID, String message) {
+        return broadcast(type, senderID, System.currentTimeMillis(), message);
+    }
+
+    // A message that is not part of the chat record, like a notice or a line forwarded by a peer, in order
+    // with the lines posted here.
+    Membership broadcast(byte type, int senderID, long time, String message) {
+        order.lock();
+        try {
+            return broadcast(type, senderID, time, 0, message);
+        } finally {
+            order.unlock();
+        }
+    }
+
+    private Membership broadcast(byte type, int senderID, long time, long sequence, String message) {
+        long start = System.nanoTime();
+        Membership receivers = membership;
+        Connection.Shared encoded = Connection.encodeShared(type, senderID, time, sequence, message);
+        for (Server.User user : receivers.users) {
+            user.connection.send(encoded);
+        }
+        for (List<Connection.Shared> held : entering.values()) {
+            held.add(encoded);
+        }
+        Metrics.fanOut.record(System.nanoTime() - start);
+        return receivers;
+    }
+
+    // Pass up to limit lines of the chat record matching a query to a sink as they are found, oldest first.
+    CompletableFuture<Integer> search(SearchQuery query, int limit, Predicate<String> sink) {
+        return ParallelSearch.start(this, query, limit, sink);
+    }
+
+    // Up to limit lines matching a query, all at once.
+    List<String> search(String query, int limit) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try {
+            search(SearchQuery.parse(query), limit, lines::add).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return lines;
+    }
+
+    // Save what is derived from the chat record, the index and the record's positions, so that a restart
+    // only reads the lines written after it.
+    void checkpoint() throws IOException {
+        chatLog.checkpoint();
+        searchIndex.save();
+    }
+
+    // Commit the chat record and save the index; closing the chat record checkpoints it.
+    public void close() throws IOException {
+        chatLog.close();
+        searchIndex.save();
+        Log.info(Log.Category.CHAT_LOG, name + " " + chatLog.stats());
+    }
+}
@@ -0,0 +1,378 @@
+package ChatRoom;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// An inverted index over the chat record: every lower-cased word maps to the offsets of the lines containing it,
+// and every username to the offsets of the lines that user sent.
+// It is fed by the chat log as messages are committed and saved next to the record, together with the
+// offset it covers, so that only the lines written after the last save need indexing on startup.
+class SearchIndex implements ChatLog.Listener {
+
+    private static final int magic = 0x43484958;
+    // Version 2 writes terms as an int length and UTF-8 bytes; writeUTF() could not hold a term of more than 64 KB.
+    private static final int version = 2;
+
+    private final Path path;
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private final HashMap<String, Postings> users = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Held while the index is written to disk, which the server's timer and closing the room may both do.
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    // Offset just past the last indexed line.
+    private long indexedUpTo = 0;
+
+    public SearchIndex(Path path) {
+        this.path = path;
+    }
+
+    // Load the saved index, if any, and index whatever the chat log committed after it.
+    void open(ChatLog chatLog) throws IOException {
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                read(in);
+            } catch (IOException e) {
+                Log.warn(Log.Category.SEARCH, "Rebuilding the search index: " + e.getMessage());
+                words.clear();
+                users.clear();
+                indexedUpTo = 0;
+            }
+        }
+        if (indexedUpTo > chatLog.end()) {
+            words.clear();
+            users.clear();
+            indexedUpTo = 0;
+        }
+        truncated(chatLog.start());
+        chatLog.scan(indexedUpTo, this);
+    }
+
+    // Index one committed line.
+    public void committed(long offset, String line) {
+        lock.writeLock().lock();
+        try {
+            String previous = null;
+            for (String word : tokenize(line)) {
+                if (!word.equals(previous)) {
+                    words.computeIfAbsent(word, w -> new Postings()).add(offset);
+                }
+                previous = word;
+            }
+            String user = senderName(line);
+            if (user != null) {
+                users.computeIfAbsent(user.toLowerCase(), u -> new Postings()).add(offset);
+            }
+            indexedUpTo = Math.max(indexedUpTo, offset + utf8Length(line) + 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Forget the lines before an offset, once the chat log has deleted them.
+    public void truncated(long start) {
+        lock.writeLock().lock();
+        try {
+            words.values().removeIf(postings -> postings.dropBefore(start));
+            users.values().removeIf(postings -> postings.dropBefore(start));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Offsets of the lines that may contain the pattern, in log order.
+    // Every word of the pattern has to start a word of the line; a pattern that is exactly a username
+    // also brings in that user's lines. The caller checks the lines themselves.
+    long[] candidates(String pattern) {
+        List<String> terms = tokenize(pattern);
+        lock.readLock().lock();
+        try {
+            long[] result = null;
+            for (String term : terms) {
+                long[] matches = prefixMatches(term);
+                result = result == null ? matches : intersect(result, matches);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            if (result == null) {
+                result = new long[0];
+            }
+            Postings byUser = users.get(pattern.trim().toLowerCase());
+            if (byUser != null) {
+                result = union(result, byUser.toArray());
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Offsets of the lines sent by a user.
+    long[] sentBy(String userName) {
+        lock.readLock().lock();
+        try {
+            Postings postings = users.get(userName.toLowerCase());
+            return postings == null ? new long[0] : postings.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Union of the postings of every word starting with the prefix: all of them copied into one array, then sorted
+    // and deduplicated once, so that a short prefix matching many words costs no more than the offsets it brings.
+    private long[] prefixMatches(String prefix) {
+        Collection<Postings> matching = words.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+        if (matching.size() == 1) {
+            return matching.iterator().next().toArray();
+        }
+        int total = 0;
+        for (Postings postings : matching) {
+            total += postings.size;
+        }
+        long[] result = new long[total];
+        int n = 0;
+        for (Postings postings : matching) {
+            System.arraycopy(postings.offsets, 0, result, n, postings.size);
+            n += postings.size;
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (distinct == 0 || result[i] != result[distinct - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    // Save the index and the offset it covers, replacing the previous save atomically.
+    // The index is encoded in memory under the read lock and written to disk after it, so that the chat log
+    // committing lines, which takes the write lock, never waits for the disk.
+    void save() throws IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(snapshot)) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(indexedUpTo);
+            write(out, words);
+            write(out, users);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        saveLock.lock();
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                snapshot.writeTo(out);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    private static void write(DataOutputStream out, Map<String, Postings> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Postings> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            entry.getValue().write(out);
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != magic || in.readInt() != version) {
+            throw new IOException("unknown index format");
+        }
+        indexedUpTo = in.readLong();
+        int wordCount = in.readInt();
+        for (int i = 0; i < wordCount; i++) {
+            words.put(readString(in), Postings.read(in));
+        }
+        int userCount = in.readInt();
+        for (int i = 0; i < userCount; i++) {
+            users.put(readString(in), Postings.read(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("corrupt index");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    // Lower-cased runs of letters and digits.
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            }
+            else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // The name in a chat line of the form "yyyy-MM-dd HH:mm:ss [id]name : text", or null for other lines.
+    static String senderName(String line) {
+        int open = line.indexOf(" [");
+        int close = line.indexOf(']', open + 1);
+        int colon = line.indexOf(" : ", close + 1);
+        if (open < 0 || close < 0 || colon < 0) {
+            return null;
+        }
+        return line.substring(close + 1, colon);
+    }
+
+    // Number of bytes of the UTF-8 encoding of a string, without encoding it.
+    static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            }
+            else if (a[i] > b[j]) {
+                j++;
+            }
+            else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    static long[] union(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        long[] result = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                result[n++] = a[i++];
+            }
+            else if (i == a.length || b[j] < a[i]) {
+                result[n++] = b[j++];
+            }
+            else {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // A growable, ascending list of line offsets.
+    private static class Postings {
+        private long[] offsets = new long[4];
+        private int size = 0;
+
+        void add(long offset) {
+            if (size > 0 && offsets[size - 1] >= offset) {
+                return;
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+
+        // Remove the offsets before a start; returns whether none are left.
+        boolean dropBefore(long start) {
+            int first = 0;
+            while (first < size && offsets[first] < start) {
+                first++;
+            }
+            if (first > 0) {
+                System.arraycopy(offsets, first, offsets, 0, size - first);
+                size -= first;
+            }
+            return size == 0;
+        }
+
+        // Offsets are stored as variable-length deltas so that saves stay small.
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                long delta = offsets[i] - previous;
+                while (delta >= 0x80) {
+                    out.writeByte((int) (delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                out.writeByte((int) delta);
+                previous = offsets[i];
+            }
+        }
+
+        static Postings read(DataInputStream in) throws IOException {
+            Postings postings = new Postings();
+            int size = in.readInt();
+            postings.offsets = new long[Math.max(4, size)];
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                long delta = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = in.readUnsignedByte();
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                previous += delta;
+                postings.offsets[i] = previous;
+            }
+            postings.size = size;
+            return postings;
+        }
+    }
+}
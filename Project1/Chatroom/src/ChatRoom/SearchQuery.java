@@ -0,0 +1,265 @@
+package ChatRoom;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// A parsed /search query. Words must all be on a line, and OR separates alternatives:
+//     meeting tomorrow OR lunch
+// "a phrase" is matched as a whole and /a regex/ anywhere on the line; words and phrases match the start
+// of words, ignoring case. Filters apply to every alternative: user:name keeps the lines of one sender,
+// and since:2026-01-31 and until:2026-02-01T18:00 keep a time range, both ends included at the precision given.
+final class SearchQuery {
+
+    // User regular expressions are limited in length, and matching them stops with a TooSlow once the search
+    // has run this long, so that a pattern that backtracks without end cannot hold the search pool.
+    static final int maxRegexLength = Integer.getInteger("chat.search.maxRegexLength", 100);
+    static final long regexTimeout = Long.getLong("chat.search.regexTimeoutMillis", 2000);
+
+    // Thrown from a search whose regular expression ran past the deadline.
+    static final class TooSlow extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooSlow() {
+            super("The regular expression took too long, try a simpler one.", null, false, false);
+        }
+    }
+
+    // A line as the matcher sees it, looking at the clock every so many characters read.
+    private static final class Deadlined implements CharSequence {
+        private final String line;
+        private final long deadline;
+        private int steps = 0;
+
+        Deadlined(String line, long deadline) {
+            this.line = line;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++steps & 0x3FF) == 0 && System.nanoTime() - deadline > 0) {
+                throw new TooSlow();
+            }
+            return line.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return line.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return line.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return line;
+        }
+    }
+
+    // A word or phrase, lower-cased, or a regular expression; one of the two is null.
+    private record Term(String text, Pattern regex) {
+
+        boolean matches(String line, String lowerLine, long deadline) {
+            if (regex != null) {
+                return regex.matcher(new Deadlined(line, deadline)).find();
+            }
+            for (int at = lowerLine.indexOf(text); at >= 0; at = lowerLine.indexOf(text, at + 1)) {
+                if (at == 0 || !Character.isLetterOrDigit(lowerLine.charAt(at - 1))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final DateTimeFormatter lineTime = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String timeTemplate = "0000-01-01 00:00:00";
+    private static final Pattern timePrefix = Pattern.compile("\\d{4}-\\d{2}-\\d{2}( \\d{2}(:\\d{2}(:\\d{2})?)?)?");
+
+    // Alternatives, each a list of terms that must all match; empty if only the filters count.
+    private final List<List<Term>> alternatives;
+    private final String user;
+    private final String since;
+    private final String until;
+
+    // When matching the regular expressions of this query has to stop.
+    private final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(regexTimeout);
+
+    private SearchQuery(List<List<Term>> alternatives, String user, String since, String until) {
+        this.alternatives = alternatives;
+        this.user = user;
+        this.since = since;
+        this.until = until;
+    }
+
+    // Parse the argument of /search; throws IllegalArgumentException with a message for the user.
+    static SearchQuery parse(String text) {
+        List<List<Term>> alternatives = new ArrayList<>();
+        List<Term> terms = new ArrayList<>();
+        String user = null;
+        String since = null;
+        String until = null;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == ' ') {
+                i++;
+            }
+            else if (c == '"') {
+                int close = text.indexOf('"', i + 1);
+                if (close < 0) {
+                    throw new IllegalArgumentException("A phrase is missing its closing quote.");
+                }
+                addWords(terms, text.substring(i + 1, close));
+                i = close + 1;
+            }
+            else if (c == '/') {
+                int close = i + 1;
+                while (close < text.length() && (text.charAt(close) != '/' || text.charAt(close - 1) == '\\')) {
+                    close++;
+                }
+                if (close == text.length()) {
+                    throw new IllegalArgumentException("A regular expression is missing its closing '/'.");
+                }
+                if (close - i - 1 > maxRegexLength) {
+                    throw new IllegalArgumentException("A regular expression can be at most " + maxRegexLength + " characters long.");
+                }
+                try {
+                    terms.add(new Term(null, Pattern.compile(text.substring(i + 1, close), Pattern.CASE_INSENSITIVE)));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Bad regular expression: " + e.getDescription() + ".");
+                }
+                i = close + 1;
+            }
+            else {
+                int end = text.indexOf(' ', i);
+                String word = text.substring(i, end < 0 ? text.length() : end);
+                i += word.length();
+                if (word.equals("OR")) {
+                    if (!terms.isEmpty()) {
+                        alternatives.add(terms);
+                        terms = new ArrayList<>();
+                    }
+                }
+                else if (word.startsWith("user:")) {
+                    user = word.substring(5);
+                }
+                else if (word.startsWith("since:")) {
+                    since = time(word.substring(6));
+                }
+                else if (word.startsWith("until:")) {
+                    until = time(word.substring(6));
+                }
+                else {
+                    addWords(terms, word);
+                }
+            }
+        }
+        if (!terms.isEmpty()) {
+            alternatives.add(terms);
+        }
+        if (alternatives.isEmpty() && user == null && since == null && until == null) {
+            throw new IllegalArgumentException("Nothing to search for.");
+        }
+        return new SearchQuery(alternatives, user, since, until);
+    }
+
+    private static void addWords(List<Term> terms, String words) {
+        if (!SearchIndex.tokenize(words).isEmpty()) {
+            terms.add(new Term(words.toLowerCase(), null));
+        }
+    }
+
+    // A time as the prefix of a chat line's timestamp, from a date with an optional "T" and time.
+    private static String time(String text) {
+        String prefix = text.replace('T', ' ');
+        if (!timePrefix.matcher(prefix).matches()) {
+            throw new IllegalArgumentException("Times are written like 2026-01-31 or 2026-01-31T18:00.");
+        }
+        try {
+            LocalDateTime.parse(prefix + timeTemplate.substring(prefix.length()), lineTime);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("There is no such time as " + text + ".");
+        }
+        return prefix;
+    }
+
+    boolean matches(String line) {
+        if (user != null && !user.equalsIgnoreCase(SearchIndex.senderName(line))) {
+            return false;
+        }
+        if (since != null || until != null) {
+            String stamp = line.length() < timeTemplate.length() ? "" : line.substring(0, timeTemplate.length());
+            if (!timePrefix.matcher(stamp).matches()) {
+                return false;
+            }
+            if (since != null && stamp.compareTo(since) < 0) {
+                return false;
+            }
+            if (until != null && stamp.substring(0, until.length()).compareTo(until) > 0) {
+                return false;
+            }
+        }
+        if (alternatives.isEmpty()) {
+            return true;
+        }
+        String lowerLine = line.toLowerCase();
+        for (List<Term> terms : alternatives) {
+            boolean all = true;
+            for (Term term : terms) {
+                if (!term.matches(line, lowerLine, deadline)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Offsets of the lines that may match, in log order, or null if the index cannot narrow the search down
+    // and the record has to be read from sinceOffset() on. Every alternative needs a word or a phrase for it.
+    long[] candidates(SearchIndex index) {
+        long[] result = null;
+        for (List<Term> terms : alternatives) {
+            long[] matches = null;
+            for (Term term : terms) {
+                if (term.text != null) {
+                    long[] termMatches = index.candidates(term.text);
+                    matches = matches == null ? termMatches : SearchIndex.intersect(matches, termMatches);
+                }
+            }
+            if (matches == null) {
+                // Only a regular expression: any line may match.
+                result = null;
+                break;
+            }
+            result = result == null ? matches : SearchIndex.union(result, matches);
+        }
+        if (user != null) {
+            long[] sent = index.sentBy(user);
+            result = result == null ? sent : SearchIndex.intersect(result, sent);
+        }
+        return result;
+    }
+
+    // The offset to start reading the record from, past the lines older than the time range.
+    long sinceOffset(ChatLog chatLog) {
+        if (since == null) {
+            return chatLog.start();
+        }
+        LocalDateTime time = LocalDateTime.parse(since + timeTemplate.substring(since.length()), lineTime);
+        return chatLog.offsetAtTime(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+}
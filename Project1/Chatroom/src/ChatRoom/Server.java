@@ -1,271 +1,1088 @@
 package ChatRoom;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class Server {
 
-    // The list of the client writers.
-    private final List<PrintWriter> clientWriters = new ArrayList<>();
+    // The clients keyed by ID, each User holding its own writer.
+    // Lookups are O(1); broadcasts go through the members of the sender's room.
+    private final ConcurrentHashMap<Integer, User> clients = new ConcurrentHashMap<>();
 
-    // The list of the clients using the User class to store and deal with the client's information.
-    private List<User> clientList = new ArrayList<>();
+    // The open rooms by name, each with its own chat record and search index; opened when joined, and closed
+    // when the last user leaves. A room being closed is in closing until it is, and opening it again waits for that.
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> closing = new ConcurrentHashMap<>();
+    private final Room lobby;
+
+    // Runs the server's periodic chores, and closes the rooms nobody is in.
+    private final ScheduledExecutorService timer;
+
+    // The other nodes of the cluster, if any.
+    private final Cluster cluster;
+
+    // The IDs of this node's range that are in use; a cluster node is limited to its own range.
+    private final IdAllocator ids;
+
+    // At most this many lines are returned by one /search, which keeps the reply under the outbound high-water mark.
+    static final int maxSearchResults = Integer.getInteger("chat.search.maxResults", 1000);
+
+    // At most this many rooms besides the lobby can be created; once there are, only existing ones can be joined.
+    static final int maxRooms = Integer.getInteger("chat.rooms.max", 100);
+
+    // Number of past messages shown on joining, and per /history page.
+    static final int historyPage = Integer.getInteger("chat.history.pageSize", 50);
+
+    // At most this many messages are replayed to a client resuming from a sequence number; older ones are paged in.
+    static final int resumeLimit = Integer.getInteger("chat.history.resumeLimit", 1000);
+
+    // How often what the server derives from the chat records is checkpointed: the search indexes and chat record
+    // positions of the open rooms, and the ID watermark in checkpointFile. It is also done when the server stops.
+    static final long checkpointInterval = Long.getLong("chat.checkpoint.intervalSeconds",
+            Long.getLong("chat.index.saveIntervalSeconds", 60));
+    static final String checkpointFile = System.getProperty("chat.checkpoint.file", "server.checkpoint");
+    private static final int checkpointMagic = 0x43485356;
+    private static final int checkpointVersion = 1;
+
+    // Number of clients accepted so far, used to report the footprint now and then.
+    private long connections = 0;
 
     static final int minID = 10000;
 
+    // The first ID this node hands out; each node of a cluster has its own range.
+    static final int firstID = minID + Cluster.nodeId * Cluster.idsPerNode;
+
+    // Port the chatroom server listens on.
+    static final int port = Integer.getInteger("chat.port", 5432);
+
+
+    private static final String searchSyntax = "also OR, \"a phrase\", /a regex/, user:name, since:2026-01-31 and until:2026-01-31T18:00.";
+
+
+    public Server() throws IOException {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lobby = new Room(Room.lobby);
+        rooms.put(lobby.name, lobby);
+        cluster = new Cluster();
+        ids = new IdAllocator(firstID, cluster.enabled() ? Cluster.idsPerNode : Integer.MAX_VALUE - firstID);
+        restore();
+
+        timer.scheduleWithFixedDelay(this::checkpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+
+        // Sample the message counters for the rates, and keep a record of the stats in a file.
+        timer.scheduleAtFixedRate(Metrics::sample, 0, 1, TimeUnit.SECONDS);
+        if (Metrics.dumpInterval > 0) {
+            timer.scheduleAtFixedRate(this::dumpStats, Metrics.dumpInterval, Metrics.dumpInterval, TimeUnit.SECONDS);
+        }
+
+        // Look for clients that went quiet or stopped reading once a second.
+        timer.scheduleWithFixedDelay(this::reap, 1, 1, TimeUnit.SECONDS);
+
+        // Commit whatever is still queued for the chat records and checkpoint everything when the server stops.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (CompletableFuture<Void> closed : closing.values()) {
+                closed.join();
+            }
+            for (Room room : rooms.values()) {
+                try {
+                    room.close();
+                } catch (IOException e) {
+                    Log.error(Log.Category.CHAT_LOG, "Closing room " + room.name + " failed.", e);
+                }
+            }
+            saveCheckpoint();
+            Log.flush();
+        }));
+    }
+
+    // Checkpoint the open rooms and the server's own state. Rooms nobody is in, like those opened again at startup
+    // or for a peer's search, are closed instead.
+    private void checkpoint() {
+        for (Room room : rooms.values()) {
+            if (unloadIfEmpty(room)) {
+                continue;
+            }
+            try {
+                room.checkpoint();
+            } catch (IOException e) {
+                Log.error(Log.Category.CHAT_LOG, "Checkpointing room " + room.name + " failed.", e);
+            }
+        }
+        saveCheckpoint();
+    }
+
+    // Save the ID watermark and the names of the open rooms, replacing the previous checkpoint atomically.
+    private void saveCheckpoint() {
+        Path path = Paths.get(checkpointFile);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(checkpointMagic);
+                out.writeInt(checkpointVersion);
+                out.writeInt(ids.watermark());
+                List<String> names = new ArrayList<>(rooms.keySet());
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error(Log.Category.SERVER, "Writing " + checkpointFile + " failed.", e);
+        }
+    }
+
+    // Carry on from the last checkpoint: IDs from the watermark on, and the rooms that were open opened again,
+    // so that nobody joining them waits for their chat record and index to load.
+    private void restore() {
+        Path path = Paths.get(checkpointFile);
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != checkpointMagic || in.readInt() != checkpointVersion) {
+                throw new IOException("unknown checkpoint format");
+            }
+            ids.resumeAfter(in.readInt());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+        } catch (IOException e) {
+            Log.warn(Log.Category.SERVER, "Ignoring " + checkpointFile + ": " + e.getMessage());
+        }
+        for (String name : names) {
+            if (Room.validName(name)) {
+                try {
+                    room(name);
+                } catch (IOException e) {
+                    Log.error(Log.Category.CHAT_LOG, "Opening room " + name + " failed.", e);
+                }
+            }
+        }
+    }
+
+    // The room of a name, opening it if it is not open, once it is closed if it is being closed.
+    // Returns null if there is no such room and maxRooms have been created already.
+    private Room room(String name) throws IOException {
+        try {
+            return rooms.computeIfAbsent(name, roomName -> {
+                try {
+                    CompletableFuture<Void> closed = closing.get(roomName);
+                    if (closed != null) {
+                        closed.join();
+                    }
+                    if (!Files.isDirectory(Room.directory(roomName)) && createdRooms() >= maxRooms) {
+                        return null;
+                    }
+                    return new Room(roomName);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Number of rooms with a chat record, the lobby aside.
+    private static long createdRooms() throws IOException {
+        Path directory = Room.directory(Room.lobby).resolveSibling("Rooms");
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (DirectoryStream<Path> records = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            long count = 0;
+            for (Path ignored : records) {
+                count++;
+            }
+            return count;
+        }
+    }
+
+    // Close a room other than the lobby if nobody is in it, committing and checkpointing its chat record on the timer
+    // thread. Returns whether it did.
+    private boolean unloadIfEmpty(Room room) {
+        if (room == lobby || !room.closeIfEmpty()) {
+            return false;
+        }
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        closing.put(room.name, closed);
+        rooms.remove(room.name, room);
+        timer.execute(() -> {
+            try {
+                room.close();
+            } catch (IOException e) {
+                Log.error(Log.Category.CHAT_LOG, "Closing room " + room.name + " failed.", e);
+            } finally {
+                closing.remove(room.name, closed);
+                closed.complete(null);
+            }
+        });
+        return true;
+    }
+
+    // Take a user out of its room, closing the room if it was the last one in it.
+    private void leave(User user) {
+        Room room = user.room;
+        room.leave(user);
+        unloadIfEmpty(room);
+    }
 
     // Establishing connection and initializing basic information of the clients.
     public void go() {
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        go(Executors.newCachedThreadPool());
+    }
+
+    // Same as go(), but every ClientHandler runs on its own virtual thread.
+    public void goVirtual() {
+        go(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    private void go(ExecutorService threadPool) {
         try {
+            cluster.start(this);
             ServerSocketChannel serverChannel = ServerSocketChannel.open();
-            serverChannel.bind(new InetSocketAddress(5432));
+            serverChannel.bind(new InetSocketAddress(port));
 
             while (serverChannel.isOpen()) {
 
                 // Connecting the users via SocketChannel.
                 SocketChannel clientSocket = serverChannel.accept();
-                PrintWriter writer = new PrintWriter(Channels.newWriter(clientSocket, UTF_8));
-                clientWriters.add(writer);
-                writer.println("#Welcome to the Chat Room!");
-
-                // Show the current users in the chatroom to the new client.
-                String currentUser = "Current Users: ";
-                for (User user : clientList) {
-                    currentUser = currentUser + "[" + user.id + "]" + user.name + " ";
-                }
-                writer.println(currentUser);
+                BlockingConnection connection = new BlockingConnection(clientSocket, threadPool);
+                register(connection);
+
+                threadPool.submit(new ClientHandler(clientSocket, connection));
+                Log.info(Log.Category.CONNECTION, "Client connected.");
+                printFootprint();
+            }
+        } catch (IOException e) {
+            Log.error(Log.Category.SERVER, "Accepting clients failed.", e);
+        }
+    }
+
+    // Serving the same protocol from a few Selector-driven event loops instead of one thread per client.
+    public void goEventLoop(int loops) {
+        try {
+            cluster.start(this);
+            new EventLoop(this, port, loops).run();
+        } catch (IOException e) {
+            Log.error(Log.Category.SERVER, "Starting the event loops failed.", e);
+        }
+    }
+
+    // Every 1000 clients, print how many threads and how much heap the server is using.
+    void printFootprint() {
+        if (++connections % 1000 == 0) {
+            Runtime runtime = Runtime.getRuntime();
+            long usedMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            Log.info(Log.Category.SERVER, connections + " clients accepted, " + threads + " platform threads, " + usedMB + " MB heap used.");
+        }
+    }
 
-                // Assign the ID to the new client.
-                int id = getID(minID);
-                clientList.add(new User(null, id));
+    // Store the connection of a new client, greet it and assign its ID.
+    void register(Connection connection) {
+        Metrics.accepted.increment();
+        connection.send("#Welcome to the Chat Room!");
+
+        // Show the current users in the chatroom to the new client.
+        StringBuilder currentUser = new StringBuilder("Current Users: ");
+        for (User user : clients.values()) {
+            currentUser.append("[").append(user.id).append("]").append(user.name).append(" ");
+        }
+        connection.send(currentUser.toString());
+
+        // Assign the ID to the new client; concurrent accepts never get the same one.
+        int id = ids.allocate();
+        if (id < 0) {
+            connection.send("#The chat room is full, please try again later.");
+            connection.close();
+            return;
+        }
+        // The user only joins the lobby once it has a name, right after the history it is shown.
+        User user = new User(null, id, connection, lobby);
+        clients.put(id, user);
 
-                writer.println("#Your ID is : " + (id));
-                writer.println("#Please enter your name:");
-                writer.flush();
+        // Forget the user and free its ID once the connection is closed, whether it left with /exit,
+        // disconnected or was dropped for falling too far behind.
+        connection.userId = id;
+        connection.onClose = () -> {
+            clients.remove(user.id, user);
+            leave(user);
+            ids.release(user.id);
+        };
 
-                threadPool.submit(new ClientHandler(clientSocket));
-                System.out.println("Client connected.");
+        connection.send("#Your ID is : " + (id));
+        connection.send("#Please enter your name:");
+    }
+
+    // The metrics with the gauges only the server knows: clients, rooms and their outbound queues.
+    private String stats() {
+        long queued = 0;
+        int deepest = 0;
+        for (User user : clients.values()) {
+            int depth = user.connection.queueDepth();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        StringBuilder report = new StringBuilder(Metrics.report(clients.size(), rooms.size(), queued, deepest));
+        for (Room room : rooms.values()) {
+            String failure = room.chatLog.failure();
+            if (failure != null) {
+                report.append("\nChat record of ").append(room.name).append(" failing: ").append(failure);
             }
+        }
+        return report.toString();
+    }
+
+    // Append the stats to the stats file.
+    private void dumpStats() {
+        try {
+            Files.writeString(Paths.get(Metrics.dumpFile), stats() + "\n", UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error(Log.Category.SERVER, "Writing " + Metrics.dumpFile + " failed.", e);
         }
     }
 
-    // Helper method to get the index in the ClientList via the user's ID.
-    private int getUserIndex(int id) {
-        for(int i = 0; i < clientList.size(); i++) {
-            if (clientList.get(i).id == id) {
-                return i;
+    // Ping the clients that went quiet, and drop those that stopped answering or stopped reading what they are sent:
+    // a client that vanished without /exit, or whose connection is half-open, is only found out this way.
+    // Only clients that answer pings get them, but any client that stays silent is dropped, as is one that connected
+    // and never gave its name.
+    // Aborting the connection unblocks its threads and frees its user, its ID and its buffers.
+    private void reap() {
+        long now = System.nanoTime();
+        for (User user : clients.values()) {
+            Connection connection = user.connection;
+            if (connection.writeStalled(now)) {
+                Log.info(Log.Category.CONNECTION, "Dropping client " + user.id + ", nothing could be written to it for "
+                        + TimeUnit.NANOSECONDS.toSeconds(Connection.writeTimeout) + " s.");
+                Metrics.writeTimeouts.increment();
+                connection.abort();
+            }
+            else if (user.name == null && Connection.greetingTimeout > 0 && now - connection.opened > Connection.greetingTimeout) {
+                Log.info(Log.Category.CONNECTION, "Dropping client " + user.id + ", no name given within "
+                        + TimeUnit.NANOSECONDS.toSeconds(Connection.greetingTimeout) + " s.");
+                Metrics.idleTimeouts.increment();
+                connection.abort();
+            }
+            else if (Connection.idleTimeout > 0 && connection.silentFor(now) > Connection.idleTimeout) {
+                Log.info(Log.Category.CONNECTION, "Dropping client " + user.id + ", not heard from for "
+                        + TimeUnit.NANOSECONDS.toSeconds(Connection.idleTimeout) + " s.");
+                Metrics.idleTimeouts.increment();
+                connection.abort();
             }
+            else if (connection.answersPings && Connection.heartbeatInterval > 0 && connection.silentFor(now) >= Connection.heartbeatInterval) {
+                connection.ping(now);
+            }
+        }
+    }
+
+    private static boolean isLocal(Connection connection) {
+        try {
+            return connection.channel.getRemoteAddress() instanceof InetSocketAddress address && address.getAddress().isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
         }
-        return 0;
     }
 
     // Send a message only to a specific client via ID.
     private void sendToUser(int id, String message) {
-        int index = getUserIndex(id);
-        PrintWriter writer = clientWriters.get(index);
-        writer.println(message);
-        writer.flush();
+        User user = clients.get(id);
+        if (user != null) {
+            user.connection.send(message);
+        }
+    }
+
+    // Send a notice to all users in a room.
+    // The message is encoded once and only queued, so a slow client cannot hold up the others.
+    private void broadcast(Room room, String message) {
+        long time = System.currentTimeMillis();
+        room.broadcast(Frame.NOTICE, 0, time, message);
+        cluster.publish(Frame.NOTICE, room.name, 0, time, message);
     }
 
-    // Send a message only to a specific client via the index of the ClientList.
-    private void sendToIndexUser(int index, String message) {
-        PrintWriter writer = clientWriters.get(index);
-        writer.println(message);
-        writer.flush();
+    // Send a message forwarded by another node to the members of a room on this one.
+    void deliver(String roomName, byte type, int senderID, long time, String message) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            room.broadcast(type, senderID, time, message);
+        }
     }
 
-    // Send a message to all users in the chatroom.
-    private void broadcast(String message) {
-        for (PrintWriter writer : clientWriters) {
-            writer.println(message);
-            writer.flush();
+    // Handle one line sent by a client on the text protocol, regardless of how the connection is served.
+    // The sender's ID is part of every line, but like with frames the sender is the user of the connection
+    // whatever the line says; the line is handled the same way as the matching frame.
+    void handleMessage(Connection connection, String message) throws IOException {
+        if (receiveMessage(connection, message)) {
+            handleReceivedMessage(connection, message);
         }
     }
 
-    // Helper method to get all the receiver of a certain message.
-    private String getMessageReceiver() {
-        String result = "Last Message Receivers:";
-        for (User user : clientList) {
-            result += " [" + user.id + "]" + user.name + ",";
+    // The part of handling a line that never blocks: the client was heard from, and the line is held against its
+    // rate limits. Returns whether it is still to be handled with handleReceivedMessage().
+    boolean receiveMessage(Connection connection, String message) {
+        Log.debug(Log.Category.MESSAGE, "read ", message);
+        Metrics.messagesIn.increment();
+        connection.heard();
+
+        // An empty line, like an answer to a heartbeat, only had to arrive.
+        if (message.isEmpty() || message.startsWith("/pong")) {
+            return false;
+        }
+
+        // A text client that answers "#Ping" with /pong says so; the others are not sent it.
+        if (message.startsWith("/heartbeat")) {
+            connection.answersPings = true;
+            return false;
         }
-        return result.substring(0, result.length() - 1);
+        boolean limitAsCommand = message.startsWith("@") || message.startsWith("/") && !message.startsWith("/exit");
+        return admit(connection, limitAsCommand, message);
     }
 
-    // Helper method to get a unique ID for a new user.
-    private int getID(int start) {
-        for (User user : clientList) {
-            if (user.id == start) {
-                return getID(start + 1);
+    // The rest of handling a line, which may wait for the disk or for a room.
+    void handleReceivedMessage(Connection connection, String message) throws IOException {
+        // Special communication to assign the username to the User representation on the server side: "@id@name".
+        if (message.charAt(0) == '@') {
+            int nameStart = message.indexOf('@', 1) + 1;
+            if (nameStart == 0) {
+                connection.send("Enter a name like @" + connection.userId + "@name.");
+                return;
+            }
+            handleName(connection.userId, singleLine(message.substring(nameStart)));
+        }
+
+        // Commands end with the sender's ID, "/search(keyword)" and "/join(room)" after their closing parenthesis.
+        else if (message.charAt(0) == '/') {
+            int open = message.indexOf('(');
+            int close = message.lastIndexOf(')');
+            if (open > 0 && close > open) {
+                handleCommand(connection.userId, message.substring(1, open), message.substring(open + 1, close));
+            }
+            else {
+                int idStart = message.length();
+                while (idStart > 1 && Character.isDigit(message.charAt(idStart - 1))) {
+                    idStart--;
+                }
+                handleCommand(connection.userId, message.substring(1, idStart), "");
             }
         }
-        return start;
+
+        // Ordinary chatting; like a chat frame, the line gets the server's time and the sender's ID and name,
+        // whatever the client put in front of the text.
+        else {
+            int separator = message.indexOf(" : ");
+            handleChat(connection.userId, singleLine(separator >= 0 && senderID(message) != 0 ? message.substring(separator + 3) : message));
+        }
     }
 
-    public static void main(String[] args) {
-        new Server().go();
+    // Handle one frame sent by a client on the framed protocol.
+    // The sender is the user of the connection whatever the frame says, and chat lines get the server's time.
+    void handleFrame(Connection connection, Frame frame) throws IOException {
+        if (receiveFrame(connection, frame)) {
+            handleReceivedFrame(connection, frame);
+        }
+    }
+
+    // Like receiveMessage(), for a frame.
+    boolean receiveFrame(Connection connection, Frame frame) {
+        Log.debug(Log.Category.MESSAGE, "read ", frame);
+        Metrics.messagesIn.increment();
+        connection.heard();
+        if (frame.type() == Frame.PONG) {
+            return false;
+        }
+        boolean limitAsCommand = frame.type() != Frame.CHAT && !(frame.type() == Frame.COMMAND && frame.payload().equals("exit"));
+        return admit(connection, limitAsCommand, frame.payload());
+    }
+
+    void handleReceivedFrame(Connection connection, Frame frame) throws IOException {
+        int userID = connection.userId;
+        switch (frame.type()) {
+            case Frame.PING -> connection.send(Frame.PONG, 0, System.currentTimeMillis(), "#Pong");
+            case Frame.NAME -> handleName(userID, singleLine(frame.payload()));
+            case Frame.COMMAND -> {
+                String command = frame.payload();
+                int space = command.indexOf(' ');
+                if (space < 0) {
+                    handleCommand(userID, command, "");
+                }
+                else {
+                    handleCommand(userID, command.substring(0, space), command.substring(space + 1));
+                }
+            }
+            case Frame.CHAT -> handleChat(userID, singleLine(frame.payload()));
+            default -> throw new IOException("Unexpected frame type " + frame.type());
+        }
+    }
+
+    // A name or chat text from a client, with line breaks made spaces: the chat record holds one message per line,
+    // and a line break would let a client add lines of its own making, with any time and sender, to the record.
+    static String singleLine(String text) {
+        return text.indexOf('\n') < 0 && text.indexOf('\r') < 0 ? text : text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // Hold a message against the sender's rate limits; returns false if it is not to be handled.
+    // Commands other than /exit, names included, are limited apart from chat lines, as they cost more.
+    // Under DELAY the message is handled, and the client is then not read from until it is back within its limits.
+    private boolean admit(Connection connection, boolean command, String text) {
+        if (connection.closing) {
+            // Whatever was already read from a client on its way out is not handled.
+            return false;
+        }
+        long wait = connection.limiter.admit(command, SearchIndex.utf8Length(text));
+        if (wait == 0) {
+            return true;
+        }
+        Metrics.rateLimited.increment();
+        if (wait > 0) {
+            connection.pauseReading(wait);
+            return true;
+        }
+        if (RateLimiter.action == RateLimiter.Action.REJECT) {
+            connection.send("You are sending too fast, your last message was not delivered.");
+        }
+        else {
+            Log.warn(Log.Category.CONNECTION, "Disconnecting client " + connection.userId + " for sending too fast.");
+            connection.send("You were disconnected for sending too fast.");
+            connection.close();
+        }
+        return false;
+    }
+
+    // Assign the username to the User representation on the server side.
+    private void handleName(int userID, String userName) throws IOException {
+        User named = clients.get(userID);
+        if (named != null) {
+            named.setName(userName);
+        }
+
+        // Display the latest chat records to the new client, or those since it last left; older ones are paged in
+        // with /history. Then the user is in the room and gets every later message live.
+        if (named != null) {
+            enter(named, named.room);
+        }
+
+        // Welcome the new user.
+        broadcast(named == null ? lobby : named.room, "[" + userID + "]" + userName +  " has entered the chatroom!");
+
+        // Display the list of built commands to the new user.
+        sendToUser(userID, "Some useful commands:");
+        sendToUser(userID, "'/exit': exit the chatroom.");
+        sendToUser(userID, "'/printReceiver': print the names of the receivers of the last message you sent.");
+        sendToUser(userID, "'/search(replace_this_with_keywords)': search the chat logs of your room for lines with all the keywords; " + searchSyntax);
+        sendToUser(userID, "'/history': show earlier chat records.");
+        sendToUser(userID, "'/join(replace_this_with_a_room_name)': move to a room, which is created if needed.");
+        sendToUser(userID, "'/leave': go back to the lobby.");
+        sendToUser(userID, "'/rooms': list the rooms and how many users are in them.");
+        sendToUser(userID, "'/help': display the list of available commands.");
+    }
+
+    // Handle a command, given by name without the leading '/'.
+    private void handleCommand(int cmdUserID, String command, String argument) throws IOException {
+        String cmdUserName;
+
+        // When user asks to exit, delete it from the clients and cut of the connection.
+        if (command.equals("exit")) {
+            User leaving = clients.get(cmdUserID);
+            if (leaving != null) {
+                cmdUserName = leaving.name;
+                broadcast(leaving.room, "[" + cmdUserID + "]" + cmdUserName + " has left the chatroom!");
+                clients.remove(cmdUserID);
+                leave(leaving);
+                leaving.connection.close();
+            }
+        }
+
+        // Search the chat record of the user's room, in parallel off the thread serving the user (see SearchQuery).
+        // Alone, the matches are sent as they are found; in a cluster, the answers of this node and of its peers
+        // are merged in time order and sent once every peer has answered or timed out.
+        else if (command.equals("search")) {
+            User requester = clients.get(cmdUserID);
+            if (requester == null) {
+                return;
+            }
+            SearchQuery query;
+            try {
+                query = SearchQuery.parse(argument);
+            } catch (IllegalArgumentException e) {
+                sendToUser(cmdUserID, e.getMessage());
+                return;
+            }
+            long start = System.nanoTime();
+            String roomName = requester.room.name;
+            if (cluster.enabled()) {
+                List<String> local = new ArrayList<>();
+                searchLocal(roomName, query, maxSearchResults + 1, local::add)
+                        .thenCombine(cluster.search(roomName, argument), (count, remote) -> {
+                            sendSearchResults(requester, local, remote);
+                            return count;
+                        })
+                        .whenComplete((count, e) -> searchDone(requester, roomName, e, start));
+            }
+            else {
+                // Stop once the requester went away, its ID may already belong to someone else.
+                AtomicInteger shown = new AtomicInteger();
+                Connection.Bulk bulk = requester.connection.bulk();
+                searchLocal(roomName, query, maxSearchResults + 1,
+                        line -> shown.incrementAndGet() <= maxSearchResults && sendRecord(bulk, line))
+                        .whenComplete((count, e) -> {
+                            bulk.flush();
+                            if (e == null && count == 0) {
+                                requester.connection.send("No records found!");
+                            }
+                            else if (e == null && shown.get() > maxSearchResults) {
+                                requester.connection.send("Only the first " + maxSearchResults + " records are shown.");
+                            }
+                            searchDone(requester, roomName, e, start);
+                        });
+            }
+        }
+
+        // A reconnecting client telling the sequence number of the last message it got in a room, before its name for
+        // the lobby or before /join for another room; instead of the latest page, it is shown what it missed since.
+        else if (command.equals("resume")) {
+            User resuming = clients.get(cmdUserID);
+            if (resuming == null) {
+                return;
+            }
+            try {
+                resuming.resumeAfter = Long.parseLong(argument.trim());
+            } catch (NumberFormatException e) {
+                sendToUser(cmdUserID, "Resume after a sequence number, like /resume(1234).");
+            }
+        }
+
+        // A client checking that the server is still there.
+        else if (command.equals("ping")) {
+            sendToUser(cmdUserID, "#Pong");
+        }
+
+        // Show the server's counters and latencies; only to clients on this machine unless chat.stats.remote is set.
+        else if (command.equals("stats")) {
+            User requester = clients.get(cmdUserID);
+            if (requester == null) {
+                return;
+            }
+            if (!Metrics.remoteStats && !isLocal(requester.connection)) {
+                sendToUser(cmdUserID, "/stats is only available on the server's machine.");
+                return;
+            }
+            for (String line : stats().split("\n")) {
+                sendToUser(cmdUserID, line);
+            }
+        }
+
+        // Display the list of commands to the user.
+        else if (command.equals("help")) {
+            sendToUser(cmdUserID, "Some useful commands:");
+            sendToUser(cmdUserID, "'/exit': exit the chatroom.");
+            sendToUser(cmdUserID, "'/printReceiver': print the names of the receivers of the last message you sent.");
+            sendToUser(cmdUserID, "'/search(replace_this_with_keywords)': search the chat logs of your room for lines with all the keywords; " + searchSyntax);
+            sendToUser(cmdUserID, "'/history': show earlier chat records.");
+            sendToUser(cmdUserID, "'/join(replace_this_with_a_room_name)': move to a room, which is created if needed.");
+            sendToUser(cmdUserID, "'/leave': go back to the lobby.");
+            sendToUser(cmdUserID, "'/rooms': list the rooms and how many users are in them.");
+            sendToUser(cmdUserID, "'/help': display the list of available commands.");
+        }
+
+        // Page further back through the chat records.
+        else if (command.equals("history")) {
+            User reader = clients.get(cmdUserID);
+            if (reader != null) {
+                ChatLog chatLog = reader.room.chatLog;
+                if (reader.historyFrom <= chatLog.firstMessage()) {
+                    sendToUser(cmdUserID, "No earlier records.");
+                }
+                else {
+                    long until = reader.historyFrom;
+                    reader.historyFrom = sendHistory(reader, reader.room, Math.max(chatLog.firstMessage(), until - historyPage), until);
+                }
+            }
+        }
+
+        // Move to another room, opening it if needed, or back to the lobby.
+        else if (command.equals("join") || command.equals("leave")) {
+            User moving = clients.get(cmdUserID);
+            if (moving == null) {
+                return;
+            }
+            String name = command.equals("leave") ? Room.lobby : argument;
+            if (!Room.validName(name)) {
+                sendToUser(cmdUserID, "Room names are 1 to 32 letters, digits, '-' or '_'.");
+            }
+            else if (moving.room.name.equals(name)) {
+                sendToUser(cmdUserID, "You are already in " + name + ".");
+            }
+            else {
+                moveTo(moving, name);
+            }
+            // A /resume before is for this move only, whether it happened or not.
+            moving.resumeAfter = -1;
+        }
+
+        // List the rooms with their number of users.
+        else if (command.equals("rooms")) {
+            StringBuilder list = new StringBuilder("Rooms:");
+            for (Room room : rooms.values()) {
+                list.append(" ").append(room.name).append(" (").append(room.size()).append("),");
+            }
+            sendToUser(cmdUserID, list.substring(0, list.length() - 1));
+        }
+
+        // Print the receivers of the client's last message.
+        else if (command.equals("printReceiver")) {
+            User receiver = clients.get(cmdUserID);
+            if (receiver != null) {
+                Room.Membership receivers = receiver.lastReceivers;
+                sendToUser(cmdUserID, receivers == null ? "No message found" : receivers.receivers());
+            }
+        }
+    }
+
+    // Ordinary chatting and chat logs storage, within the sender's room: the room stamps the line and sends it
+    // to its chat record, its members and the peers in sequence order (see Room.post()).
+    private void handleChat(int senderID, String text) {
+        User sender = clients.get(senderID);
+        if (sender == null) {
+            return;
+        }
+        Room room = sender.room;
+        Room.Posted posted;
+        try {
+            posted = room.post(senderID, sender.name, text,
+                    post -> cluster.publish(Frame.CHAT, room.name, senderID, post.time(), post.line()));
+        } catch (IOException e) {
+            sender.connection.send("Your message was not sent, the chat record cannot take it right now.");
+            return;
+        }
+
+        // Keep the membership epoch the message went to; /printReceiver lists it only when asked.
+        sender.lastReceivers = posted.receivers();
+    }
+
+    // Take a user out of its room and into another, telling both rooms and replaying the new room's latest records.
+    private void moveTo(User user, String name) throws IOException {
+        Room target = room(name);
+        if (target == null) {
+            sendToUser(user.id, "No more rooms can be created; see /rooms for the open ones.");
+            return;
+        }
+        Room from = user.room;
+        leave(user);
+        broadcast(from, "[" + user.id + "]" + user.name + " has left room " + from.name + ".");
+
+        // The room may have been closed since it was looked up, its last user leaving; then it is opened again.
+        user.room = target;
+        while (!enter(user, target)) {
+            target = room(name);
+            user.room = target;
+        }
+        broadcast(target, "[" + user.id + "]" + user.name + " has joined room " + target.name + ".");
+    }
+
+    // The ID in a chat line of the form "yyyy-MM-dd HH:mm:ss [id]name : text", or 0 if there is none.
+    static int senderID(String line) {
+        int open = line.indexOf(" [");
+        int close = line.indexOf(']', open + 1);
+        if (open < 0 || close < 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(line, open + 2, close, 10);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // A room to search, or null if there is no record of it on this node.
+    private Room searchableRoom(String roomName) throws IOException {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            // Open a room that has a record here but nobody in it since the start, but do not create one.
+            if (!Room.validName(roomName) || !Files.isDirectory(Room.directory(roomName))) {
+                return null;
+            }
+            room = room(roomName);
+        }
+        return room;
+    }
+
+    // Pass up to limit lines of a room's chat record on this node matching a query to a sink, oldest first.
+    private CompletableFuture<Integer> searchLocal(String roomName, SearchQuery query, int limit, Predicate<String> sink) throws IOException {
+        Room room = searchableRoom(roomName);
+        return room == null ? CompletableFuture.completedFuture(0) : room.search(query, limit, sink);
+    }
+
+    // Up to maxSearchResults + 1 lines of a room's chat record on this node matching a query, for a peer, once found.
+    CompletableFuture<List<String>> searchLocal(String roomName, String query) {
+        List<String> lines = new ArrayList<>();
+        try {
+            return searchLocal(roomName, SearchQuery.parse(query), maxSearchResults + 1, lines::add).handle((count, e) -> {
+                if (e != null) {
+                    if (!(e instanceof SearchQuery.TooSlow) && !(e.getCause() instanceof SearchQuery.TooSlow)) {
+                        Log.error(Log.Category.SEARCH, "Searching " + roomName + " for a peer failed.", e);
+                    }
+                    return List.<String>of();
+                }
+                return lines;
+            });
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(List.of());
+        } catch (IOException e) {
+            Log.error(Log.Category.SEARCH, "Searching " + roomName + " for a peer failed.", e);
+            return CompletableFuture.completedFuture(List.of());
+        }
+    }
+
+    private void searchDone(User requester, String roomName, Throwable error, long start) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof SearchQuery.TooSlow) {
+            requester.connection.send(cause.getMessage());
+        }
+        else if (error != null) {
+            Log.error(Log.Category.SEARCH, "Searching " + roomName + " failed.", error);
+            requester.connection.send("The search failed.");
+        }
+        Metrics.search.record(System.nanoTime() - start);
+    }
+
+    // Send the lines found here and on the peers, oldest first, up to maxSearchResults.
+    private void sendSearchResults(User requester, List<String> local, List<String> remote) {
+        List<String> lines = new ArrayList<>(local);
+        if (!remote.isEmpty()) {
+            // Chat lines start with their time, so ordering them as text orders them in time.
+            lines.addAll(remote);
+            Collections.sort(lines);
+        }
+        if (lines.isEmpty()) {
+            requester.connection.send("No records found!");
+            return;
+        }
+        Connection.Bulk bulk = requester.connection.bulk();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i == maxSearchResults) {
+                bulk.flush();
+                requester.connection.send("Only the first " + maxSearchResults + " records are shown.");
+                return;
+            }
+            // Stop if the requester went away, its ID may already belong to someone else.
+            if (!sendRecord(bulk, lines.get(i))) {
+                return;
+            }
+        }
+        bulk.flush();
+    }
+
+    // Add a line of the chat record to what is being sent to a user; search results go without a sequence number.
+    private boolean sendRecord(Connection.Bulk bulk, String line) {
+        return bulk.add(Frame.RECORD, senderID(line), System.currentTimeMillis(), 0, line);
+    }
+
+    // Put a user in a room, showing it first the last page of the room's chat record, or what it missed since
+    // the sequence number it resumes from; older records are paged in with /history.
+    // Returns false if the room is closed.
+    private boolean enter(User user, Room room) throws IOException {
+        long resumeAfter = user.resumeAfter;
+        boolean entered = room.enter(user, next -> {
+            long from = next - historyPage;
+            if (resumeAfter >= 0) {
+                from = Math.min(next, Math.max(resumeAfter + 1, next - resumeLimit));
+            }
+            user.historyFrom = sendHistory(user, room, Math.max(room.chatLog.firstMessage(), from), next);
+            if (resumeAfter >= 0 && user.historyFrom > resumeAfter + 1) {
+                user.connection.send("Only the last " + (next - user.historyFrom) + " records since you left are shown; see /history for more.");
+            }
+        });
+        if (entered) {
+            user.resumeAfter = -1;
+            // A user gone during the replay was not let in, and the room may be left empty.
+            if (user.connection.closed()) {
+                unloadIfEmpty(room);
+            }
+        }
+        return entered;
+    }
+
+    // Send the chat records of a room from one message number up to another to a user, each with its sequence number.
+    // Of a page of long lines only the newest that fit in half the outbound byte budget are sent, so that replaying
+    // it cannot get the client dropped as a slow consumer. Returns the number of the first record sent.
+    private long sendHistory(User user, Room room, long from, long until) throws IOException {
+        long start = Math.max(from, room.chatLog.firstMessage());
+        List<String> lines = room.lines(start, until);
+        int first = lines.size();
+        long bytes = 0;
+        while (first > 0) {
+            bytes += Frame.headerBytes + 4 + SearchIndex.utf8Length(lines.get(first - 1));
+            if (bytes > Connection.highWaterBytes / 2 && first < lines.size()) {
+                break;
+            }
+            first--;
+        }
+        Connection.Bulk bulk = user.connection.bulk();
+        long sequence = start + first;
+        long time = System.currentTimeMillis();
+        for (String line : lines.subList(first, lines.size())) {
+            if (!bulk.add(Frame.RECORD, senderID(line), time, sequence++, line)) {
+                break;
+            }
+        }
+        bulk.flush();
+        return start + first;
+    }
+
+    // Run with "selector [loops]" to use the event loop mode, "virtual" to use virtual threads,
+    // otherwise one pooled thread per client is used.
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("selector")) {
+            int loops = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+            new Server().goEventLoop(loops);
+        }
+        else if (args.length > 0 && args[0].equals("virtual")) {
+            new Server().goVirtual();
+        }
+        else {
+            new Server().go();
+        }
     }
 
     // ClientHandler to handle the communication with clients.
     private class ClientHandler implements Runnable {
-        BufferedReader reader;
+        BufferedInputStream input;
         SocketChannel socket;
+        Connection connection;
+        private byte[] line = new byte[256];
 
-        public ClientHandler(SocketChannel clientSocket) {
+        public ClientHandler(SocketChannel clientSocket, Connection clientConnection) {
             socket = clientSocket;
-            reader = new BufferedReader(Channels.newReader(socket, UTF_8));
+            connection = clientConnection;
+            // Channels.newReader() synchronizes on a monitor, which would pin a virtual thread while it waits for input.
+            input = new BufferedInputStream(Channels.newInputStream(socket));
         }
 
+        // The first byte tells a framed client, which starts with the preface, from a text client.
         public void run() {
-            String message;
             try {
-                while ((message = reader.readLine()) != null) {
-                    System.out.println("read " + message);
-
-                    // Special communication to assign the username to the User representation on the server side.
-                    if (message.charAt(0) == '@') {
-                        String[] split = message.split("@");
-                        int userID =  Integer.parseInt(split[1]);
-                        String userName = split[2];
-                        for (int i = clientList.size() - 1; i >= 0; i--) {
-                            if (clientList.get(i).id == userID) {
-                                clientList.get(i).setName(userName);
-                                break;
-                            }
-                        }
-
-                        // Display the chat records to the new client.
-                        File file = new  File("ChatRecord.txt");
-                        if (file.exists()) {
-                            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                                String line;
-                                while ((line = br.readLine()) != null) {
-                                    sendToUser(userID, line);
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        else {
-                            try {
-                                file.createNewFile();
-                                try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
-                                    bw.write("[CHAT RECORD]\n");
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                input.mark(1);
+                int first = input.read();
+                if (first < 0) {
+                    return;
+                }
+                input.reset();
+                if (first == Frame.preface[0]) {
+                    readFrames(new DataInputStream(input));
+                }
+                else {
+                    connection.negotiate(false);
+                    readLines();
+                }
+            } catch (IOException e) {
+                Log.debug(Log.Category.CONNECTION, "Dropping a client: ", e);
+            } finally {
+                // The client is gone; once its pending output is written the connection closes and frees the ID.
+                connection.close();
+            }
+        }
 
-                        // Welcome the new user.
-                        broadcast("[" + userID + "]" + userName +  " has entered the chatroom!");
+        private void readLines() throws IOException {
+            String message;
+            while ((message = readLine()) != null) {
+                handleMessage(connection, message);
+                waitOutPause();
+            }
+        }
 
-                        // Display the list of built commands to the new user.
-                        sendToUser(userID, "Some useful commands:");
-                        sendToUser(userID, "'/exit': exit the chatroom.");
-                        sendToUser(userID, "'/printReceiver': print the names of the receivers of the last message you sent.");
-                        sendToUser(userID, "'/search(replace_this_with_the_keyword_you_want_to_search)': search for chat logs that contain specific keywords or username.");
-                        sendToUser(userID, "'/help': display the list of available commands.");
-                    }
+        // Read a line the way the event loop does: a client sending a line longer than maxLineLength is dropped
+        // before any of it reaches a room, instead of the line being read whole and fanned out to every member.
+        private String readLine() throws IOException {
+            int length = 0;
+            int b;
+            while ((b = input.read()) != '\n') {
+                if (b < 0) {
+                    return length == 0 ? null : new String(line, 0, length, UTF_8);
+                }
+                if (length == EventLoop.maxLineLength) {
+                    throw new IOException("Line too long");
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, EventLoop.maxLineLength));
+                }
+                line[length++] = (byte) b;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, UTF_8);
+        }
 
-                    // Handle commands.
-                    else if (message.charAt(0) == '/') {
-                        String cmdUserName;
-
-                        // When user asks to exit, delete it from the clientList and cut of the connection.
-                        if (message.startsWith("/exit")) {
-                            int cmdUserID = Integer.parseInt(message.substring(5));
-                            for (int i = 0; i < clientList.size(); i++) {
-                                if (clientList.get(i).id == cmdUserID) {
-                                    cmdUserName = clientList.get(i).name;
-                                    broadcast("[" + cmdUserID + "]" + cmdUserName + " has left the chatroom!");
-                                    clientList.remove(i);
-                                    clientWriters.get(i).close();
-                                    clientWriters.remove(i);
-                                    break;
-                                }
-                            }
-                        }
-
-                        // Search for a certain keyword in the chat record.
-                        else if (message.startsWith("/search")) {
-                            int cmdUserID = Integer.parseInt(message.substring(message.length() - 5));
-                            File myFile = new File("ChatRecord.txt");
-                            FileReader fr = new FileReader(myFile);
-                            BufferedReader br = new BufferedReader(fr);
-                            String line;
-                            String pattern = message.substring(8, message.length() - 6);
-                            boolean empty = true;
-                            while((line = br.readLine()) != null) {
-                                if (line.contains(pattern)) {
-                                    sendToUser(cmdUserID, line);
-                                    empty = false;
-                                }
-                            }
-                            if (empty) {
-                                sendToUser(cmdUserID, "No records found!");
-                            }
-                        }
-
-                        // Display the list of commands to the user.
-                        else if (message.startsWith("/help")) {
-                            int cmdUserID = Integer.parseInt(message.substring(5));
-                            sendToUser(cmdUserID, "Some useful commands:");
-                            sendToUser(cmdUserID, "'/exit': exit the chatroom.");
-                            sendToUser(cmdUserID, "'/printReceiver': print the names of the receivers of the last message you sent.");
-                            sendToUser(cmdUserID, "'/search(replace_this_with_the_keyword_you_want_to_search)': search chat logs for specific keywords or username.");
-                            sendToUser(cmdUserID, "'/help': display the list of available commands.");
-                        }
-
-                        // Print the receivers of the client's last message.
-                        else if (message.startsWith("/printReceiver")) {
-                            int cmdUserID = Integer.parseInt(message.substring(14));
-                            int cmdUserIndex = getUserIndex(cmdUserID);
-                            sendToIndexUser(cmdUserIndex, clientList.get(cmdUserIndex).lastMessageReceiver);
-                        }
-                    }
+        private void readFrames(DataInputStream in) throws IOException {
+            byte[] preface = Frame.readPreface(in);
+            int version = Frame.checkPreface(preface);
+            if (version != Frame.version) {
+                connection.negotiate(false);
+                connection.send("#Unsupported protocol version " + version + ".");
+                connection.close();
+                return;
+            }
+            connection.negotiate(true, Frame.asksForCompression(preface));
+            Frame frame;
+            while ((frame = Frame.read(in)) != null) {
+                handleFrame(connection, frame);
+                waitOutPause();
+            }
+        }
 
-                    // Ordinary chatting and chat logs storage.
-                    else {
-                        broadcast(message);
-
-                        // Save the receivers of the message.
-                        int msgID = Integer.parseInt(message.substring(21, 26));
-                        int msgIndex = getUserIndex(msgID);
-                        clientList.get(msgIndex).lastMessageReceiver = getMessageReceiver();
-
-                        // Save the chat logs into a server side text file.
-                        try {
-                            Files.write(Paths.get("ChatRecord.txt"), Arrays.asList(message), StandardOpenOption.APPEND);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
+        // Stop reading from a client that went past its rate limits until it is within them again;
+        // what it sends meanwhile waits in the socket buffers, and then in its own.
+        private void waitOutPause() throws InterruptedIOException {
+            long wait = connection.readPause();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while pausing a client");
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
         }
     }
 
 
     // A server side helper class to represent the clients and their basic information.
-    private class User {
-        private String name;
-        private int id;
-        private String lastMessageReceiver;
+    // Rooms read the name, ID and connection of their members.
+    static class User {
+        volatile String name;
+        final int id;
+        final Connection connection;
+        // The membership of the room the user's last message was sent to, or null before the first one.
+        private volatile Room.Membership lastReceivers;
+
+        // The room the user is in; every user starts in the lobby.
+        private volatile Room room;
+
+        // Message number of the oldest chat record shown to this user so far.
+        private volatile long historyFrom;
+
+        // The sequence number the user resumes after when it enters, or -1 to be shown the latest page.
+        private volatile long resumeAfter = -1;
 
-        public User(String name, int id) {
+        public User(String name, int id, Connection connection, Room room) {
             this.name = name;
             this.id = id;
-            lastMessageReceiver = "No message found";
+            this.connection = connection;
+            this.room = room;
         }
 
         public void setName(String name) {